@@ -0,0 +1,104 @@
+package cs455.overlay.node;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import cs455.overlay.wireformats.OverlayNodeSendsData;
+import cs455.overlay.wireformats.OverlayNodeSendsDataBatch;
+import cs455.overlay.wireformats.Protocol;
+
+/***
+ * Collects data records into one OverlayNodeSendsDataBatch per next hop. A batch is sent as soon as
+ * it holds batchSize records, and flush sends whatever is left. It is not thread safe, each sending
+ * thread (the task thread and every relay worker) has its own.
+ *
+ * A node only sends to its routing entries, so there are only a handful of next hops. They are
+ * kept in a small array that is searched in order, which works for any size of id space.
+ *
+ * @author acarbona
+ *
+ */
+public class DataBatcher {
+	private MessagingNode owner;
+	private int batchSize;
+	private int[] nextHops;
+	private OverlayNodeSendsDataBatch[] batches;
+	private int numHops = 0;
+	private boolean relaying;
+
+	/***
+	 * @param owner the node whose connections the batches are sent on
+	 * @param batchSize the number of records to put in a batch before it is sent
+	 * @param relaying true for a relay worker's batcher (it decides what happens when a next hop
+	 * is out of credits)
+	 */
+	public DataBatcher(MessagingNode owner, int batchSize, boolean relaying) {
+		this.owner = owner;
+		this.batchSize = batchSize;
+		this.relaying = relaying;
+		nextHops = new int[8];
+		batches = new OverlayNodeSendsDataBatch[8];
+	}
+
+	/***
+	 * Adds a record to the batch for the next hop, sending the batch if it is full
+	 * @param nextHop the id of the node the record is sent to
+	 * @param dest the destination id of the message
+	 * @param src the source id of the message
+	 * @param payload the payload of the message
+	 * @param timestamp the send time or OverlayNodeSendsData.NO_TIMESTAMP
+	 * @return the number of records sent (a batch that is shed sends none)
+	 * @throws IOException
+	 */
+	public int add(int nextHop, int dest, int src, int payload, long timestamp) throws IOException {
+		int slot = slotFor(nextHop);
+		OverlayNodeSendsDataBatch batch = batches[slot];
+		if (batch == null) {
+			batch = new OverlayNodeSendsDataBatch(Protocol.OVERLAY_NODE_SENDS_DATA_BATCH, batchSize, timestamp != OverlayNodeSendsData.NO_TIMESTAMP);
+			batches[slot] = batch;
+		}
+
+		batch.add(dest, src, payload, timestamp);
+		if (batch.getCount() >= batchSize) {
+			return send(slot);
+		}
+		return 0;
+	}
+
+	/***
+	 * Sends every batch that has records in it
+	 * @return the number of records sent
+	 * @throws IOException
+	 */
+	public int flush() throws IOException {
+		int sent = 0;
+		for (int slot = 0; slot < numHops; slot++) {
+			if (batches[slot] != null) {
+				sent += send(slot);
+			}
+		}
+		return sent;
+	}
+
+	// Finds the slot of the next hop, adding one if it hasn't been seen before
+	private int slotFor(int nextHop) {
+		for (int slot = 0; slot < numHops; slot++) {
+			if (nextHops[slot] == nextHop) {
+				return slot;
+			}
+		}
+		if (numHops == nextHops.length) {
+			nextHops = Arrays.copyOf(nextHops, numHops * 2);
+			batches = Arrays.copyOf(batches, numHops * 2);
+		}
+		nextHops[numHops] = nextHop;
+		return numHops++;
+	}
+
+	// A new batch is started afterwards since the sender may still be holding on to the old one
+	private int send(int slot) throws IOException {
+		OverlayNodeSendsDataBatch batch = batches[slot];
+		batches[slot] = null;
+		return owner.sendBatch(nextHops[slot], batch, relaying);
+	}
+}
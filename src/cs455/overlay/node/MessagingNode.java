@@ -1,30 +1,47 @@
 package cs455.overlay.node;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Random;
 import java.util.Scanner;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 
+import cs455.overlay.routing.NodeSet;
 import cs455.overlay.routing.RoutingTable;
+import cs455.overlay.transport.BufferPool;
+import cs455.overlay.transport.FlowControl;
 import cs455.overlay.transport.TCPConnection;
 import cs455.overlay.transport.TCPConnectionsCache;
 import cs455.overlay.transport.TCPServerThread;
 import cs455.overlay.util.InteractiveCommandParser;
+import cs455.overlay.util.LatencyHistogram;
+import cs455.overlay.util.OverlayConfiguration;
+import cs455.overlay.util.TrafficCounters;
 import cs455.overlay.wireformats.Event;
 import cs455.overlay.wireformats.NodeReportsOverlaySetupStatus;
+import cs455.overlay.wireformats.OverlayNodeAcksData;
+import cs455.overlay.wireformats.OverlayNodeIdentifiesPeer;
 import cs455.overlay.wireformats.OverlayNodeReportsTaskFinished;
+import cs455.overlay.wireformats.OverlayNodeReportsThroughput;
+import cs455.overlay.wireformats.OverlayNodeReportsTrafficStatus;
 import cs455.overlay.wireformats.OverlayNodeReportsTrafficSummary;
 import cs455.overlay.wireformats.OverlayNodeSendsData;
+import cs455.overlay.wireformats.OverlayNodeSendsDataBatch;
 import cs455.overlay.wireformats.OverlayNodeSendsDeregistration;
 import cs455.overlay.wireformats.OverlayNodeSendsRegistration;
 import cs455.overlay.wireformats.Protocol;
 import cs455.overlay.wireformats.RegistryReportsDeregistrationStatus;
 import cs455.overlay.wireformats.RegistryReportsRegistrationStatus;
 import cs455.overlay.wireformats.RegistryRequestsTaskInitiate;
+import cs455.overlay.wireformats.RegistryRequestsTrafficStatus;
 import cs455.overlay.wireformats.RegistrySendsNodeManifest;
+import cs455.overlay.workload.AckTracker;
+import cs455.overlay.workload.MessageSink;
+import cs455.overlay.workload.WorkloadGenerator;
+import cs455.overlay.workload.WorkloadSpec;
 
 /***
  * This represents the client node of the overlay. It implements the 
@@ -36,10 +53,39 @@ import cs455.overlay.wireformats.RegistrySendsNodeManifest;
  * 
  * Usage:
  * 
- * java cs455.overlay.node.MessagingNode <server_host> <server_port>
+ * java cs455.overlay.node.MessagingNode <server_host> <server_port> [options]
  * 
  * Server_host is the hostname where the server resides
  * Server_port is the port in which the registry's server thread is listening
+ * Options are key=value settings (see OverlayConfiguration), e.g. transport=nio
+ * 
+ * relay=fast|decode chooses whether data messages are relayed straight from their bytes
+ * (the default) or decoded into events first. trace=off sends messages without a hop trace
+ * and stops relays from adding to one, trace=sample:<n> only traces every nth message. relays=<num_threads> sets the number of relay workers and
+ * relay-queue=<num_frames> how many frames each of them can hold. latency=on stamps each message
+ * with its send time so the destinations can report latency percentiles. batch=<num_records>
+ * packs that many messages for the same next hop into each OverlayNodeSendsDataBatch frame
+ * (batched messages carry no hop trace). connect-timeout=<ms> is how long the node waits for the
+ * connections to its routing entries when it gets its manifest (5000 by default).
+ * 
+ * The messages of a task are sent by a WorkloadGenerator on senders=<num_threads> threads (1 by
+ * default), following the workload in the task initiate message (the registry's workload, dist and
+ * seed options). The node is the generator's MessageSink, and in window workloads it acks the
+ * messages it receives back to their sources with OverlayNodeAcksData.
+ * 
+ * The data frames on every connection are limited by credits (see FlowControl, credits=<frames>).
+ * When a next hop is out of credits the task senders wait for more, or with overload=shed drop the
+ * message (or the whole batch) instead, and it isn't counted as sent. A sender that waits more than
+ * credit-timeout=<ms> (10000 by default) gives up on the task, since the next hop has stopped
+ * giving credits back (most likely it has died), and the task is reported finished. It gives up
+ * straight away if the connection to the next hop closes. Relays send anyway, up to overdraft=<frames>
+ * past their credits, and then wait for credits at most credit-wait=<ms> (20 by default) before
+ * sending regardless, so relays waiting on each other around the ring can't stall the overlay (see
+ * FlowControl.overdraw). The frames waiting at a node for any one connection are therefore bounded
+ * by credits plus overdraft, except while a ring of relays is stuck like that.
+ * 
+ * From the task initiate message until the traffic summary request the node reports what it sent,
+ * relayed and received to the registry every report-interval=<ms> (1000 by default, 0 for never).
  * 
  * Messaging nodes must be started AFTER the registry
  * 
@@ -48,21 +94,37 @@ import cs455.overlay.wireformats.RegistrySendsNodeManifest;
  *
  */
 
-public class MessagingNode extends Thread implements Node {
+public class MessagingNode implements RelayingNode, MessageSink {
 
-	// All class variables are volatile to ensure that when multiple threads are accessing
-	// the variables they will be pulling the correct value.
-	private int sendTracker, receiveTracker, relayTracker = 0;
-	private long sendSummation, receiveSummation = 0;
+	// The node is used by the connections' readers, the relay workers and the task senders at once.
+	// The counters are thread safe, and the fields that are replaced while the node runs are volatile
+	// so every thread sees the new value.
+	private TrafficCounters counters = new TrafficCounters();
+	private volatile LatencyHistogram latency = new LatencyHistogram();
+	private boolean stampLatency = OverlayConfiguration.getInstance().getBoolean("latency", false);
+	private int batchSize = Math.max(1, OverlayConfiguration.getInstance().getInt("batch", 1));
 	private TCPConnection serverConnection;
-	private Socket socket;
 	private int id;
 	private RoutingTable table;
 	private TCPServerThread listener; // Needed to listen for nodes trying to connection to it in P2P fashion
 	private volatile TCPConnectionsCache nodeConnections;
-	private volatile ArrayList<Integer> allNodes;
-	private int messagesToSend;
-	private Queue<OverlayNodeSendsData> relayQueue = new LinkedList<OverlayNodeSendsData>();
+	private volatile NodeSet allNodes;
+	private volatile WorkloadGenerator generator;
+	private int numSenders = Math.max(1, OverlayConfiguration.getInstance().getInt("senders", 1));
+	private ThreadLocal<DataBatcher> taskBatchers;
+	private boolean shedLoad = OverlayConfiguration.getInstance().getString("overload", "block").equalsIgnoreCase("shed");
+	private long creditWait = Math.max(0, OverlayConfiguration.getInstance().getInt("credit-wait", 20));
+	private long creditTimeout = Math.max(1, OverlayConfiguration.getInstance().getInt("credit-timeout", 10000));
+	private AtomicLong shed = new AtomicLong(0);
+	private volatile AckTracker acks;
+	private RelayWorker[] relayWorkers;
+	private boolean fastRelay = !OverlayConfiguration.getInstance().getString("relay", "fast").equalsIgnoreCase("decode");
+	private int traceEvery = parseTraceOption(OverlayConfiguration.getInstance().getString("trace", "on"));
+	private boolean appendTrace = traceEvery != 0;
+	private int connectTimeout = Math.max(1, OverlayConfiguration.getInstance().getInt("connect-timeout", 5000));
+	private int reportInterval = Math.max(0, OverlayConfiguration.getInstance().getInt("report-interval", 1000));
+	private Timer reportTimer = new Timer("throughput-reports", true);
+	private TimerTask throughputReports;
 	
 	/***
 	 * The constructor for the messaging node provides all the setup requirements.
@@ -75,9 +137,16 @@ public class MessagingNode extends Thread implements Node {
 		try {
 			// Initial setup of the node
 			
+			// Start the relay workers before anything can arrive for them
+			OverlayConfiguration config = OverlayConfiguration.getInstance();
+			relayWorkers = new RelayWorker[Math.max(1, config.getInt("relays", 2))];
+			for (int i = 0; i < relayWorkers.length; i++) {
+				relayWorkers[i] = new RelayWorker(this, config.getInt("relay-queue", 65536), batchSize);
+				relayWorkers[i].start();
+			}
+			
 			// Create a socket and connection with the server host
-			socket = new Socket(serverHost, serverPort);
-			serverConnection = new TCPConnection(socket, this);
+			serverConnection = TCPConnection.connect(InetAddress.getByName(serverHost), serverPort, this);
 			
 			// Start receiving data from the server
 			serverConnection.readData();
@@ -94,8 +163,8 @@ public class MessagingNode extends Thread implements Node {
 			// Send the registration request. It sends the server the port of it's server thread because
 			// that port number will be distributed to all the nodes attempting to connect to it for the overlay
 //			synchronized (this) {
-				OverlayNodeSendsRegistration event = new OverlayNodeSendsRegistration(Protocol.OVERLAY_NODE_SENDS_REGISTRATION, socket.getLocalAddress().getAddress(), listener.getPort());
-				serverConnection.sendData(event.getBytes());
+				OverlayNodeSendsRegistration event = new OverlayNodeSendsRegistration(Protocol.OVERLAY_NODE_SENDS_REGISTRATION, serverConnection.getLocalAddress(), listener.getPort(), serverConnection.getLocalPort());
+				serverConnection.sendEvent(event);
 //			}
 		} catch (IOException e) {
 			System.out.println("Error in creating messaging node: " + e.getMessage());
@@ -125,122 +194,40 @@ public class MessagingNode extends Thread implements Node {
 				break;
 			case Protocol.REGISTRY_SENDS_NODE_MANIFEST:
 //				System.out.println("Node: " + id + ". Got manifest!");
-				// Create a new routing table
-				table = new RoutingTable(id);
-				
-				try {
-					
-					// Have the wireformat parse out the event
-					RegistrySendsNodeManifest nodeManifest = (RegistrySendsNodeManifest) e;
-					
-					// Grab the routing table information from the event
-					int size = nodeManifest.getSize();
-					ArrayList<Integer> ids = nodeManifest.getIDs();
-					ArrayList<byte[]> ips = nodeManifest.getIPs();
-					ArrayList<Integer> ports = nodeManifest.getPorts();
-	
-					// Iterate through arraylists and create routing table connections
-					for (int i = 0; i < size; i++) {
-						int hopID = ids.get(i);
-						byte[] hopIP = ips.get(i);
-						int hopPort = ports.get(i);
-						
-						Socket newSocket = new Socket(InetAddress.getByAddress(hopIP), hopPort);
-						
-						TCPConnection connect = new TCPConnection(newSocket, this);
-//						System.out.println("Node (" + id+ ") connecting to " + hopID);
-						
-						// Add the connections to the connection cache and add the entry to the routing table
-						nodeConnections.add(hopID, connect);
-						table.add(hopID, (int) Math.pow(2, i));
-					}
-					
-					// Get number of nodes
-	
-					allNodes = new ArrayList<Integer>();
-					
-					// get nodes
-					int[] nodes = nodeManifest.getNodes();
-					for (int i = 0; i < nodes.length; i++) {
-						allNodes.add(nodes[i]);
+				// Connecting to the routing entries can take up to connect-timeout, which must not hold up
+				// the reader (with transport=nio that would stop every connection on its selector)
+				final RegistrySendsNodeManifest nodeManifest = (RegistrySendsNodeManifest) e;
+				new Thread("overlay-setup") {
+					public void run() {
+						setUpOverlay(nodeManifest);
 					}
-					
-					// Populate the node list in the routing table (used for routing calculations)
-					table.populateNodeList(allNodes);
-					
-					// Send overlay status message
-					int success = id;
-					
-					// Send the overlay status to the registry
-					NodeReportsOverlaySetupStatus setupStatus = new NodeReportsOverlaySetupStatus(Protocol.NODE_REPORTS_OVERLAY_SETUP_STATUS, success, "Setup successful");
-					serverConnection.sendData(setupStatus.getBytes());
-				} catch (IOException e1) {
-					System.out.println("Error in recieving node manifest" + e1.getMessage());
-					e1.printStackTrace();
-				}
-				
+				}.start();
 				break;
 			case Protocol.REGISTRY_REQUESTS_TASK_INITIATE:
 //				System.out.println(id + ": Got task initiate message!");
-				try {
-					
-					// Parse the task initiate message using the wireformat
-					RegistryRequestsTaskInitiate taskInitiate = (RegistryRequestsTaskInitiate) e;
-					
-					// This must be synchonized because multiple threads could be attempting to 
-					// update this variable, thus creating a race condition
-					messagesToSend = taskInitiate.getNumPackets();
-					
-					Random generator = new Random();
-
-					// Create n messages
-					for (int i = 0; i < messagesToSend; i++) {
-						// Generate a random node to send the message to
-						int randIndex = generator.nextInt(allNodes.size());
-						while (allNodes.get(randIndex) == id) {
-							randIndex = generator.nextInt(allNodes.size());
-						}
-						
-						// Get the destination id of the random node
-						int destID = allNodes.get(randIndex);
-						
-						// Use the routing table to determine the next node to send it to
-						int sendTo = table.getDest(destID);
-						
-						// Generate a random payload
-						int payload = generator.nextInt();
-												
-						// Add the id to the hop trace
-						ArrayList<Integer> trace = new ArrayList<Integer>();
-						trace.add(id);
-						
-//						System.out.println(id + ": Sending data to " + sendTo);
-						
-						// Send the data to the correct node
-						OverlayNodeSendsData sendData = new OverlayNodeSendsData(Protocol.OVERLAY_NODE_SENDS_DATA, destID, id, payload, trace);
-						nodeConnections.getConnection(sendTo).sendData(sendData.getBytes());
-						
-						// Add to the send tracker and send summation variables. This must be synchronized to avoid 
-						// any race conditions
-						synchronized (this) {
-							sendTracker++;
-							sendSummation += payload;
+				// Parse the task initiate message using the wireformat
+				RegistryRequestsTaskInitiate taskInitiate = (RegistryRequestsTaskInitiate) e;
+				WorkloadSpec workload = taskInitiate.getWorkload();
+				
+				// When batching, the messages are collected by next hop and sent in batches. Every
+				// sender has its own batches, the sender threads are new for each task so they start empty
+				if (batchSize > 1 && taskBatchers == null) {
+					taskBatchers = new ThreadLocal<DataBatcher>() {
+						@Override
+						protected DataBatcher initialValue() {
+							return new DataBatcher(MessagingNode.this, batchSize, false);
 						}
-						
-						//System.out.println("[INFO]: " + id + " done sending packet #" +(i+1));
-					}
-					
-					// Send the task complete message once n nodes are sent
-//					synchronized (this) {
-					OverlayNodeReportsTaskFinished taskFinished = new OverlayNodeReportsTaskFinished(Protocol.OVERLAY_NODE_REPORTS_TASK_FINISHED, socket.getLocalAddress().getAddress(), socket.getPort(), id);
-					serverConnection.sendData(taskFinished.getBytes());
-//					}
-//					System.out.println(id + ": Done initiating task");
-				} catch (IOException e1) {
-					System.out.println("Task Initiate error: " + e1.getMessage());
-					e1.printStackTrace();
+					};
 				}
 				
+				if (workload.getMode() == WorkloadSpec.WINDOW) {
+					acks.start(workload.getWindow());
+				}
+				
+				// Send the messages on their own threads so this one can go back to receiving
+				generator = new WorkloadGenerator(workload, allNodes, id, numSenders, this);
+				generator.start();
+				startThroughputReports();
 				break;
 			case Protocol.OVERLAY_NODE_SENDS_DATA:
 				// Parse out the event
@@ -253,23 +240,67 @@ public class MessagingNode extends Thread implements Node {
 				
 	//					System.out.println("[INFO]: " + id + " got a packet from " + srcID + " going to " + destID + " with payload " + payload);
 				
-				// Get the hop trace and add id
-				ArrayList<Integer> hopTrace = sentData.getHopTrace();
-				
-				hopTrace.add(id);
-				
-	//					System.out.println("Hop trace size: " + hopTrace.size());
+				// Add id to the hop trace
+				if (appendTrace) {
+					sentData.addHop(id);
+				}
 				
 				// If this is the destination
 				if (destID == id) {
 					// Increment counters
-					synchronized (this) {
-						receiveTracker++;
-						receiveSummation+= payload;
+					recordDelivery(sentData.getSrcID(), payload, sentData.getTimestamp());
+				} else {
+					try {
+						submitRelay(destID, sentData.getBytes(), FlowControl.takeReturn());
+					} catch (IOException e1) {
+						System.out.println("Error in marshalling data to relay: " + e1.getMessage());
+						e1.printStackTrace();
+					}
+				}
+				break;
+			case Protocol.OVERLAY_NODE_SENDS_DATA_BATCH:
+				OverlayNodeSendsDataBatch batch = (OverlayNodeSendsDataBatch) e;
+				
+				// Count the records that are for this node and split the rest between the relay workers
+				OverlayNodeSendsDataBatch[] toRelay = new OverlayNodeSendsDataBatch[relayWorkers.length];
+				for (int i = 0; i < batch.getCount(); i++) {
+					int recordDest = batch.getDestID(i);
+					if (recordDest == id) {
+						recordDelivery(batch.getSrcID(i), batch.getPayload(i), batch.getTimestamp(i));
+					} else {
+						int worker = recordDest % relayWorkers.length;
+						if (toRelay[worker] == null) {
+							toRelay[worker] = new OverlayNodeSendsDataBatch(Protocol.OVERLAY_NODE_SENDS_DATA_BATCH, batch.getCount(), batch.hasTimestamps());
+						}
+						toRelay[worker].add(recordDest, batch.getSrcID(i), batch.getPayload(i), batch.getTimestamp(i));
+					}
+				}
+				
+				// The batch came in as one frame, so its credit goes back with the first part to be relayed
+				FlowControl credit = FlowControl.takeReturn();
+				for (int i = 0; i < toRelay.length; i++) {
+					if (toRelay[i] != null) {
+						relayWorkers[i].submit(toRelay[i], credit);
+						credit = null;
+					}
+				}
+				if (credit != null) {
+					credit.returnCredit();
+				}
+				break;
+			case Protocol.OVERLAY_NODE_ACKS_DATA:
+				OverlayNodeAcksData ack = (OverlayNodeAcksData) e;
+				if (ack.getDestID() == id) {
+					WorkloadGenerator current = generator;
+					if (current != null) {
+						current.acknowledged(ack.getCount());
 					}
 				} else {
-					synchronized (relayQueue) {
-						relayQueue.add(sentData);
+					try {
+						submitAck(ack.getDestID(), ack.getBytes());
+					} catch (IOException e1) {
+						System.out.println("Error in marshalling ack to relay: " + e1.getMessage());
+						e1.printStackTrace();
 					}
 				}
 				break;
@@ -278,24 +309,48 @@ public class MessagingNode extends Thread implements Node {
 				try {
 //					System.out.println(id + ": Received traffic summary request. Sending information and clearing data.");
 
-					// Clear all variables to ensure the program can be run multiple times
-					synchronized (this) {
-						OverlayNodeReportsTrafficSummary trafficSummary = new OverlayNodeReportsTrafficSummary(Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY, id, sendTracker, relayTracker, sendSummation, receiveTracker, receiveSummation);
-						sendTracker = 0;
-						receiveTracker = 0;
-						relayTracker = 0;
-						sendSummation = 0;
-						receiveSummation = 0;
-						synchronized (relayQueue) {
-							relayQueue.clear();
-						}
-						serverConnection.sendData(trafficSummary.getBytes());
+					// Clear all variables to ensure the program can be run multiple times. The counters
+					// are read and reset in one step, so nothing counted meanwhile is lost. The relay queues are
+					// left alone: the registry only asks once everything has arrived, and a frame thrown away
+					// there would never give back its credit
+					stopThroughputReports();
+					TrafficCounters.Snapshot traffic = counters.snapshotAndReset();
+					LatencyHistogram recorded = latency;
+					latency = new LatencyHistogram();
+					OverlayNodeReportsTrafficSummary trafficSummary = new OverlayNodeReportsTrafficSummary(Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY, id, (int) traffic.getSent(), (int) traffic.getRelayed(), traffic.getSumSent(), (int) traffic.getReceived(), traffic.getSumReceived(), recorded);
+					if (acks != null) {
+						acks.reset();
 					}
+					serverConnection.sendEvent(trafficSummary);
 				} catch (IOException e1) {
 					System.out.println("Error in Messaging Node trying to send traffic summary: " + e1.getMessage());
 					e1.printStackTrace();
 				}
 				break;
+			case Protocol.REGISTRY_REQUESTS_TRAFFIC_STATUS:
+				// Report the counts so far (without resetting them) so the registry can tell if everything has arrived
+				try {
+					RegistryRequestsTrafficStatus statusRequest = (RegistryRequestsTrafficStatus) e;
+					TrafficCounters.Snapshot traffic = counters.snapshot();
+					OverlayNodeReportsTrafficStatus trafficStatus = new OverlayNodeReportsTrafficStatus(Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_STATUS, id, statusRequest.getRound(), traffic.getSent(), traffic.getRelayed(), traffic.getReceived());
+					serverConnection.sendEvent(trafficStatus);
+				} catch (IOException e1) {
+					System.out.println("Error in Messaging Node trying to send traffic status: " + e1.getMessage());
+					e1.printStackTrace();
+				}
+				break;
+			case Protocol.OVERLAY_NODE_IDENTIFIES_PEER:
+				// A node connected to this one, keep the connection so it can be used to send back to that node
+				try {
+					OverlayNodeIdentifiesPeer peer = (OverlayNodeIdentifiesPeer) e;
+					TCPConnection inbound = listener.claimConnection(InetAddress.getByAddress(peer.getIPAddress()), peer.getPort());
+					if (inbound != null && !nodeConnections.containsKey(peer.getID())) {
+						nodeConnections.add(peer.getID(), inbound);
+					}
+				} catch (UnknownHostException e1) {
+					System.out.println("Peer sent an invalid address: " + e1.getMessage());
+				}
+				break;
 			case Protocol.REGISTRY_REPORTS_DEREGISTRATION_STATUS:
 				RegistryReportsDeregistrationStatus dereg = (RegistryReportsDeregistrationStatus) e;
 				if (dereg.getSuccess() == -1) {
@@ -310,69 +365,477 @@ public class MessagingNode extends Thread implements Node {
 	}
 	
 	/***
-	 * Generates the statistics to be printed
-	 * 
+	 * The relay fast path. Only the destination (and the payload if the frame is for this node)
+	 * is read from the frame. A frame passing through is copied once, with this node's id added
+	 * to the end of the hop trace, and queued to be forwarded as raw bytes.
 	 */
-	public void printCountersAndStats() {
-		System.out.println("Messages sent: " + sendTracker);
-		System.out.println("Messages received: " + receiveTracker);
-		System.out.println("Messages relayed: " + relayTracker);
-		System.out.println("Sent summation: " + sendSummation);
-		System.out.println("Receive summation: " + receiveSummation);
+	@Override
+	public boolean onDataFrame(ByteBuffer frame) {
+		if (!fastRelay || frame.remaining() < OverlayNodeSendsData.HEADER_SIZE) {
+			// Let the event path deal with it (and report it if the frame is broken)
+			return false;
+		}
+		
+		int destID = OverlayNodeSendsData.peekDestID(frame);
+		if (destID == id) {
+			recordDelivery(OverlayNodeSendsData.peekSrcID(frame), OverlayNodeSendsData.peekPayload(frame), OverlayNodeSendsData.peekTimestamp(frame));
+		} else {
+			byte[] relayed = appendTrace ? OverlayNodeSendsData.appendHop(frame, id) : OverlayNodeSendsData.copyFrame(frame);
+			submitRelay(destID, relayed, FlowControl.takeReturn());
+		}
+		return true;
 	}
 	
 	/***
-	 * Helper method that sends the deregistration request
+	 * Connects to the routing entries in the manifest, builds the routing table and reports the
+	 * setup status to the registry. Runs on a thread of its own.
+	 * @param nodeManifest the manifest sent by the registry
 	 */
-	public void deregister() {
+	private void setUpOverlay(RegistrySendsNodeManifest nodeManifest) {
+		long setupStart = System.nanoTime();
+		
 		try {
-			synchronized (this) {
-				OverlayNodeSendsDeregistration event = new OverlayNodeSendsDeregistration(Protocol.OVERLAY_NODE_SENDS_DEREGISTRATION, socket.getLocalAddress().getAddress(), socket.getLocalPort(), id);
-				serverConnection.sendData(event.getBytes());
+			// Create a new routing table
+			table = new RoutingTable(id, nodeManifest.getIDBits());
+			
+			// Grab the routing table information from the event
+			int size = nodeManifest.getSize();
+			ArrayList<Integer> ids = nodeManifest.getIDs();
+			ArrayList<byte[]> ips = nodeManifest.getIPs();
+			ArrayList<Integer> ports = nodeManifest.getPorts();
+			
+			// Open all the routing connections at once
+			TCPConnection[] connections = connectToEntries(size, ids, ips, ports);
+			String failed = "";
+
+			// Iterate through the connections and create the routing table entries
+			for (int i = 0; i < size; i++) {
+				int hopID = ids.get(i);
+				if (connections[i] == null) {
+					failed += " " + hopID;
+					continue;
+				}
+				
+				// Add the connections to the connection cache and add the entry to the routing table
+				nodeConnections.add(hopID, connections[i]);
+				table.add(hopID, (int) Math.pow(2, i));
 			}
-		} catch (IOException e) {
-			System.out.println("Error with sending overlay deregistration request.");
-			e.printStackTrace();
+			
+			// Get the nodes in the overlay
+			allNodes = new NodeSet(nodeManifest.getNodes());
+			
+			// Populate the node list in the routing table (used for routing calculations)
+			table.populateNodeList(allNodes);
+			acks = new AckTracker(allNodes, this);
+			
+			// Send overlay status message
+			int success = failed.isEmpty() ? id : -1;
+			String setupInfo = failed.isEmpty() ? "Setup successful" : "Node " + id + " could not connect to" + failed;
+			long setupTime = (System.nanoTime() - setupStart) / 1000;
+			
+			// Send the overlay status to the registry
+			NodeReportsOverlaySetupStatus setupStatus = new NodeReportsOverlaySetupStatus(Protocol.NODE_REPORTS_OVERLAY_SETUP_STATUS, success, setupInfo, setupTime);
+			serverConnection.sendEvent(setupStatus);
+		} catch (IOException e1) {
+			System.out.println("Error in recieving node manifest" + e1.getMessage());
+			e1.printStackTrace();
+		} catch (InterruptedException e1) {
+			System.out.println("Interrupted while connecting to the overlay");
+			Thread.currentThread().interrupt();
 		}
 	}
 	
-	public void run() {
-		while(true){
-			OverlayNodeSendsData relayMsg;
-			synchronized (relayQueue){
-				relayMsg = relayQueue.poll();
+	/***
+	 * Opens a connection to every routing entry, all at the same time. A node that already
+	 * connected to this one (and identified itself) is not connected to again, its connection
+	 * is used instead. Every new connection identifies this node to the other end and starts
+	 * reading, since the other node may send back on it.
+	 *
+	 * @return the connections in the order of the entries, with null for any that failed or
+	 * didn't connect within connect-timeout milliseconds
+	 * @throws InterruptedException
+	 */
+	private TCPConnection[] connectToEntries(int size, final ArrayList<Integer> ids, final ArrayList<byte[]> ips, final ArrayList<Integer> ports) throws InterruptedException {
+		TCPConnection[] connections = new TCPConnection[size];
+		final TCPConnection[] made = new TCPConnection[size];
+		// Set (holding made's lock) once the time is up, so a connector either finishes in time or closes its connection
+		final boolean[] late = new boolean[1];
+		Thread[] connectors = new Thread[size];
+		
+		for (int i = 0; i < size; i++) {
+			connections[i] = nodeConnections.getConnection(ids.get(i));
+			if (connections[i] != null) {
+				continue;
 			}
-			 
-			if (relayMsg != null){
-				try {
-					//System.out.println("Got a message to send!");
-					int sendTo = table.getDest(relayMsg.getDestID());
-					byte[] bytesToSend = relayMsg.getBytes();
-					TCPConnection connectionToUse = nodeConnections.getConnection(sendTo);
-					connectionToUse.sendData(bytesToSend);
-					
-					synchronized(relayQueue) {
-						System.out.println(relayQueue.size());
+			
+			final int entry = i;
+			connectors[i] = new Thread() {
+				public void run() {
+					try {
+						TCPConnection connection = TCPConnection.connect(InetAddress.getByAddress(ips.get(entry)), ports.get(entry), MessagingNode.this, connectTimeout);
+						synchronized (made) {
+							// Too late to be used, don't leave the other node a link nobody will send on
+							if (late[0]) {
+								connection.close();
+								return;
+							}
+							connection.sendEvent(new OverlayNodeIdentifiesPeer(Protocol.OVERLAY_NODE_IDENTIFIES_PEER, id, connection.getLocalAddress(), connection.getLocalPort()));
+							connection.readData();
+							made[entry] = connection;
+						}
+					} catch (IOException e) {
+						System.out.println("Error connecting to node " + ids.get(entry) + ": " + e.getMessage());
 					}
-					//System.out.println("Sent message, incrementing tracker");
-					// Increment the relaytracker variable
-					synchronized (this) {
-						relayTracker++;
+				}
+			};
+			connectors[i].start();
+		}
+		
+		// A connector that hasn't identified itself when the time is up counts as failed
+		long deadline = System.currentTimeMillis() + connectTimeout;
+		for (int i = 0; i < size; i++) {
+			if (connectors[i] != null) {
+				connectors[i].join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+		}
+		synchronized (made) {
+			late[0] = true;
+			for (int i = 0; i < size; i++) {
+				if (connectors[i] != null) {
+					connections[i] = made[i];
+				}
+			}
+		}
+		return connections;
+	}
+	
+	/***
+	 * Works out how often messages are traced from the trace option
+	 * @param option on, off or sample:<n>
+	 * @return 1 to trace every message, n to trace every nth message or 0 for none
+	 */
+	private static int parseTraceOption(String option) {
+		if (option.equalsIgnoreCase("off")) {
+			return 0;
+		} else if (option.toLowerCase().startsWith("sample:")) {
+			try {
+				return Math.max(0, Integer.parseInt(option.substring("sample:".length())));
+			} catch (NumberFormatException e) {
+				System.out.println("Invalid value for trace: " + option + ". Using on");
+			}
+		}
+		return 1;
+	}
+	
+	// Sends what changed in the counters to the registry every report interval
+	private synchronized void startThroughputReports() {
+		stopThroughputReports();
+		if (reportInterval == 0) {
+			return;
+		}
+		
+		throughputReports = new TimerTask() {
+			private TrafficCounters.Snapshot last = counters.snapshot();
+			private long lastTime = System.nanoTime();
+			
+			@Override
+			public void run() {
+				// The report is built under the node's lock so it can't straddle the reset of the counters,
+				// but sent after letting go of it, so a slow registry doesn't hold up the node's other work.
+				// A report built just before the reset may reach the registry after the summary, which only
+				// adds traffic that was really seen to its throughput figures
+				OverlayNodeReportsThroughput report;
+				synchronized (MessagingNode.this) {
+					if (throughputReports != this) {
+						return;
 					}
+					TrafficCounters.Snapshot now = counters.snapshot();
+					long time = System.nanoTime();
+					report = new OverlayNodeReportsThroughput(Protocol.OVERLAY_NODE_REPORTS_THROUGHPUT, id, (time - lastTime) / 1000,
+							now.getSent() - last.getSent(), now.getRelayed() - last.getRelayed(), now.getReceived() - last.getReceived());
+					last = now;
+					lastTime = time;
+				}
+				
+				try {
+					serverConnection.sendEvent(report);
 				} catch (IOException e) {
-					System.err.println(e.getMessage());
+					System.out.println("Error in Messaging Node trying to send throughput: " + e.getMessage());
 				}
 			}
+		};
+		reportTimer.scheduleAtFixedRate(throughputReports, reportInterval, reportInterval);
+	}
+	
+	private synchronized void stopThroughputReports() {
+		if (throughputReports != null) {
+			throughputReports.cancel();
+			throughputReports = null;
+		}
+	}
+	
+	// Counts a message that reached this node, and how long it took if it was timestamped
+	private void recordDelivery(int srcID, int payload, long timestamp) {
+		counters.recordReceived(payload);
+		if (timestamp != OverlayNodeSendsData.NO_TIMESTAMP) {
+			latency.record(LatencyHistogram.currentTimeMicros() - timestamp);
+		}
+		AckTracker tracker = acks;
+		if (tracker != null) {
+			tracker.record(srcID);
+		}
+	}
+	
+	// Frames for the same destination always go to the same worker so their order is kept
+	private void submitRelay(int destID, byte[] frame, FlowControl credit) {
+		relayWorkers[destID % relayWorkers.length].submit(frame, credit);
+	}
+	
+	// Acks skip ahead of the data waiting in the worker's queue
+	private void submitAck(int destID, byte[] frame) {
+		relayWorkers[destID % relayWorkers.length].submitControl(frame);
+	}
+	
+	/***
+	 * Sends a relayed frame on to the next hop. Called by the relay workers.
+	 * @param frame the marshalled OverlayNodeSendsData (or OverlayNodeAcksData) frame
+	 * @throws IOException
+	 */
+	void relay(byte[] frame) throws IOException {
+		int sendTo = table.getDest(OverlayNodeSendsData.peekDestID(frame));
+		TCPConnection connectionToUse = nodeConnections.getConnection(sendTo);
+		
+		// Acks aren't messages, they need no credit and aren't counted as relayed
+		boolean data = frame[0] == Protocol.OVERLAY_NODE_SENDS_DATA;
+		if (data) {
+			takeRelayCredit(connectionToUse.getFlowControl());
+		}
+		connectionToUse.sendData(frame);
+		
+		// Increment the relaytracker variable
+		if (data) {
+			counters.recordRelayed();
+		}
+	}
+	
+	/***
+	 * Adds the records of a batch to the relay worker's batches for their next hops. Called by the
+	 * relay workers.
+	 * @param batch the records to relay
+	 * @param batcher the relay worker's batcher
+	 * @throws IOException
+	 */
+	void relay(OverlayNodeSendsDataBatch batch, DataBatcher batcher) throws IOException {
+		for (int i = 0; i < batch.getCount(); i++) {
+			int destID = batch.getDestID(i);
+			int sent = batcher.add(table.getDest(destID), destID, batch.getSrcID(i), batch.getPayload(i), batch.getTimestamp(i));
+			counters.recordRelayed(sent);
+		}
+	}
+	
+	/***
+	 * Sends the relay worker's partly filled batches
+	 * @param batcher the relay worker's batcher
+	 * @throws IOException
+	 */
+	void flushRelays(DataBatcher batcher) throws IOException {
+		counters.recordRelayed(batcher.flush());
+	}
+	
+	/***
+	 * Sends a batch of records to the next hop once it has a credit for it. Used by the DataBatchers.
+	 * The task's records are counted as sent here, so a batch that is shed isn't counted.
+	 * @param nextHop the id of the node to send to
+	 * @param batch the records
+	 * @param relaying true if the batch is being relayed, false if it is from the task senders
+	 * @return the number of records sent (0 if the batch was shed)
+	 * @throws IOException if the batch couldn't be sent or a task sender gave up waiting for a credit
+	 */
+	int sendBatch(int nextHop, OverlayNodeSendsDataBatch batch, boolean relaying) throws IOException {
+		TCPConnection connection = nodeConnections.getConnection(nextHop);
+		FlowControl flow = connection.getFlowControl();
+		if (relaying) {
+			takeRelayCredit(flow);
+		} else if (shedLoad) {
+			if (!flow.tryAcquire()) {
+				shedMessages(batch.getCount());
+				return 0;
+			}
+		} else {
+			takeTaskCredit(flow, nextHop);
+		}
+		connection.sendEvent(batch);
+		
+		if (!relaying) {
+			for (int i = 0; i < batch.getCount(); i++) {
+				counters.recordSent(batch.getPayload(i));
+			}
+		}
+		return batch.getCount();
+	}
+	
+	// Task senders wait as long as it takes, unless the next hop has stopped returning credits altogether
+	private void takeTaskCredit(FlowControl flow, int nextHop) throws IOException {
+		if (!flow.acquire(creditTimeout)) {
+			if (flow.isClosed()) {
+				throw new IOException("The connection to node " + nextHop + " has closed, giving up on the task");
+			}
+			throw new IOException("No credits back from node " + nextHop + " for " + creditTimeout + " ms, giving up on the task");
+		}
+	}
+	
+	// A shed message will never be acked, so in window workloads its permit goes straight back
+	private void shedMessages(int count) {
+		shed.addAndGet(count);
+		WorkloadGenerator current = generator;
+		if (current != null) {
+			current.shed(count);
+		}
+	}
+	
+	// Relays overdraw rather than wait, since the node they are waiting on may be waiting on this one.
+	// A connection that closed is left to fail the send
+	private void takeRelayCredit(FlowControl flow) {
+		flow.overdraw(creditWait);
+	}
+	
+	/***
+	 * Routes and sends one message of the task. Called by the workload generator's senders.
+	 */
+	@Override
+	public void sendMessage(int destID, int payload, long sequence) throws IOException {
+		// Use the routing table to determine the next node to send it to
+		int sendTo = table.getDest(destID);
+		long timestamp = stampLatency ? LatencyHistogram.currentTimeMicros() : OverlayNodeSendsData.NO_TIMESTAMP;
+		
+		if (taskBatchers != null) {
+			// The batch takes its credit (or is shed) and is counted when it is sent
+			taskBatchers.get().add(sendTo, destID, id, payload, timestamp);
+			return;
+		}
+		
+		TCPConnection connection = nodeConnections.getConnection(sendTo);
+		FlowControl flow = connection.getFlowControl();
+		
+		if (shedLoad) {
+			if (!flow.tryAcquire()) {
+				shedMessages(1);
+				return;
+			}
+		} else {
+			takeTaskCredit(flow, sendTo);
+		}
+		
+		// Start the hop trace with the id (if this message is traced)
+		int[] trace = null;
+		if (traceEvery != 0 && sequence % traceEvery == 0) {
+			trace = new int[] { id };
+		}
+		
+		// Send the data to the correct node
+		OverlayNodeSendsData sendData = new OverlayNodeSendsData(Protocol.OVERLAY_NODE_SENDS_DATA, destID, id, payload, trace, timestamp);
+		connection.sendEvent(sendData);
+		
+		// Add to the send tracker and send summation
+		counters.recordSent(payload);
+	}
+	
+	/***
+	 * Sends the calling sender's partly filled batches
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (taskBatchers != null) {
+			taskBatchers.get().flush();
+		}
+	}
+	
+	/***
+	 * Tells the registry every message of the task has been sent
+	 */
+	@Override
+	public void taskFinished() throws IOException {
+		OverlayNodeReportsTaskFinished taskFinished = new OverlayNodeReportsTaskFinished(Protocol.OVERLAY_NODE_REPORTS_TASK_FINISHED, serverConnection.getLocalAddress(), serverConnection.getPort(), id);
+		serverConnection.sendEvent(taskFinished);
+	}
+	
+	/***
+	 * Routes an ack back to the source of the messages, ahead of any data waiting to be relayed
+	 */
+	@Override
+	public void sendAck(int destID, int count) throws IOException {
+		OverlayNodeAcksData ack = new OverlayNodeAcksData(Protocol.OVERLAY_NODE_ACKS_DATA, destID, id, count);
+		submitAck(destID, ack.getBytes());
+	}
+	
+	/***
+	 * @return the number of frames waiting in all the relay queues
+	 */
+	public int getRelayQueueDepth() {
+		int depth = 0;
+		for (RelayWorker worker : relayWorkers) {
+			depth += worker.getDepth();
+		}
+		return depth;
+	}
+	
+	/***
+	 * @return the most frames that have been waiting in any one relay queue
+	 */
+	public int getMaxRelayQueueDepth() {
+		int max = 0;
+		for (RelayWorker worker : relayWorkers) {
+			max = Math.max(max, worker.getMaxDepth());
+		}
+		return max;
+	}
+	
+	/***
+	 * Generates the statistics to be printed
+	 * 
+	 */
+	public void printCountersAndStats() {
+		TrafficCounters.Snapshot traffic = counters.snapshot();
+		System.out.println("Messages sent: " + traffic.getSent());
+		System.out.println("Messages received: " + traffic.getReceived());
+		System.out.println("Messages relayed: " + traffic.getRelayed());
+		System.out.println("Sent summation: " + traffic.getSumSent());
+		System.out.println("Receive summation: " + traffic.getSumReceived());
+		LatencyHistogram recorded = latency;
+		if (recorded.getCount() != 0) {
+			System.out.println("Latency (us): p50 " + recorded.getValueAtPercentile(50) + ", p99 " + recorded.getValueAtPercentile(99) + ", max " + recorded.getMax());
+		}
+		long overdrafts = 0;
+		TCPConnectionsCache connections = nodeConnections;
+		for (int hop : connections.getIDs()) {
+			overdrafts += connections.getConnection(hop).getFlowControl().getOverdrafts();
+		}
+		System.out.println("Messages shed: " + shed.get() + ", credit overdrafts: " + overdrafts);
+		System.out.println("Relay queue depth: " + getRelayQueueDepth() + " (" + relayWorkers.length + " workers, max " + getMaxRelayQueueDepth() + ")");
+		System.out.println("Receive buffer pool hits: " + BufferPool.getInstance().getHits() + ", misses: " + BufferPool.getInstance().getMisses());
+	}
+	
+	/***
+	 * Helper method that sends the deregistration request
+	 */
+	public void deregister() {
+		try {
+			synchronized (this) {
+				OverlayNodeSendsDeregistration event = new OverlayNodeSendsDeregistration(Protocol.OVERLAY_NODE_SENDS_DEREGISTRATION, serverConnection.getLocalAddress(), serverConnection.getLocalPort(), id);
+				serverConnection.sendEvent(event);
+			}
+		} catch (IOException e) {
+			System.out.println("Error with sending overlay deregistration request.");
+			e.printStackTrace();
 		}
 	}
 	
 	public static void main(String args[]) {
-		if (args.length != 2) {
+		if (args.length < 2) {
 			// print usage
 		} else {
+			OverlayConfiguration.getInstance().parse(args, 2);
 			MessagingNode newNode = new MessagingNode(args[0], Integer.parseInt(args[1]));
-			Thread sender = new Thread(newNode);
-			sender.start();
 			Scanner input = new Scanner(System.in);
 			
 			String command = "";
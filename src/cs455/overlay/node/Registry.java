@@ -7,18 +7,27 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Random;
 import java.util.Scanner;
-import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
 
+import cs455.overlay.routing.RoutingTable;
 import cs455.overlay.transport.TCPConnection;
 import cs455.overlay.transport.TCPConnectionsCache;
 import cs455.overlay.transport.TCPServerThread;
+import cs455.overlay.util.EventLoop;
 import cs455.overlay.util.InteractiveCommandParser;
+import cs455.overlay.util.LatencyHistogram;
+import cs455.overlay.util.NodeIDAllocator;
+import cs455.overlay.util.OverlayConfiguration;
 import cs455.overlay.util.StatisticsCollectorAndDisplay;
+import cs455.overlay.util.ThroughputMonitor;
 import cs455.overlay.wireformats.Event;
 import cs455.overlay.wireformats.NodeReportsOverlaySetupStatus;
 import cs455.overlay.wireformats.OverlayNodeReportsTaskFinished;
+import cs455.overlay.wireformats.OverlayNodeReportsThroughput;
+import cs455.overlay.wireformats.OverlayNodeReportsTrafficStatus;
 import cs455.overlay.wireformats.OverlayNodeReportsTrafficSummary;
 import cs455.overlay.wireformats.OverlayNodeSendsDeregistration;
 import cs455.overlay.wireformats.OverlayNodeSendsRegistration;
@@ -26,8 +35,10 @@ import cs455.overlay.wireformats.Protocol;
 import cs455.overlay.wireformats.RegistryReportsDeregistrationStatus;
 import cs455.overlay.wireformats.RegistryReportsRegistrationStatus;
 import cs455.overlay.wireformats.RegistryRequestsTaskInitiate;
+import cs455.overlay.wireformats.RegistryRequestsTrafficStatus;
 import cs455.overlay.wireformats.RegistryRequestsTrafficSummary;
 import cs455.overlay.wireformats.RegistrySendsNodeManifest;
+import cs455.overlay.workload.WorkloadSpec;
 
 /***
  * The registry manages all the nodes in the overlay. It collects and stores the connections
@@ -35,7 +46,28 @@ import cs455.overlay.wireformats.RegistrySendsNodeManifest;
  * 
  * Usage:
  * 
- * java cs455.overlay.node.Registry <port_num>
+ * java cs455.overlay.node.Registry <port_num> [options]
+ * 
+ * Options are key=value settings (see OverlayConfiguration). For example transport=nio
+ * switches to the selector based transport so a few threads can serve every node.
+ * id-bits=<bits> sets the size of the id space (7 bits, so 128 nodes, by default and at most 31).
+ * id-alloc=hash derives each node's id from its address instead of picking a random free one.
+ * workload=max|rate:<msgs_per_sec>|window:<in_flight>, dist=uniform|zipf:<exponent>|
+ * hotspot:<fraction_of_nodes>:<fraction_of_messages>|nearest:<num_nodes> and seed=<n> describe
+ * the traffic start asks the nodes for (see WorkloadSpec). report-interval=<ms> is how often the
+ * overlay's throughput is printed while a task runs (every 1000 ms by default, 0 for never).
+ * drain-timeout=<ms> is how long to wait for the messages to drain after a task (30000 by
+ * default). When it runs out the registry prints how many are missing and asks for the traffic
+ * summaries anyway.
+ * 
+ * start <num_messages> has every node send that many messages, start-for <seconds> has them send
+ * for that long. Either way the nodes report their throughput as they go.
+ * 
+ * The registry's state is only touched by one thread, an EventLoop. The receiver threads post the
+ * events they decode to it, and the console commands and the status timer post tasks.
+ * 
+ * Once every node has finished its task the registry keeps asking the nodes for their counts until
+ * everything that was sent has been received. Only then does it request the traffic summaries.
  * 
  * The port number needs to be open for the registry to work. You must start the registry before
  * starting any messaging nodes.
@@ -51,13 +83,54 @@ public class Registry implements Node {
 	private HashMap<Integer, ArrayList<Integer>> overlay;
 	private HashMap<Integer, Integer> nodePorts;
 	private int numOfNodes = 0;
-	private volatile int finished_nodes = 0;
-	private volatile StatisticsCollectorAndDisplay stats =  new StatisticsCollectorAndDisplay();
-	private volatile int numOfSetupNodes = 0;
+	private int finished_nodes = 0;
+	private StatisticsCollectorAndDisplay stats =  new StatisticsCollectorAndDisplay();
+	private int numOfSetupNodes = 0;
+	private int idBits;
+	private NodeIDAllocator idAllocator;
+	private long overlayStart;
+	private long slowestSetup = 0;
+	
+	// Used to detect when the overlay has drained after a task
+	private static final long MIN_STATUS_DELAY = 5;
+	private static final long MAX_STATUS_DELAY = 1000;
+	private Timer statusTimer = new Timer(true);
+	private int statusRound = 0;
+	private int drainRounds, statusReplies = 0;
+	private long statusSent, statusReceived = 0;
+	private long statusDelay = MIN_STATUS_DELAY;
+	private long drainStart;
+	private boolean draining = false;
+	private int drains = 0;
+	private long drainTimeout = Math.max(1, OverlayConfiguration.getInstance().getInt("drain-timeout", 30000));
+	// The totals of the last round every node answered, for the message printed on a timeout
+	private long lastSent = -1, lastReceived = -1;
+	
+	// Prints the overlay's throughput while a task runs
+	private ThroughputMonitor throughput = new ThroughputMonitor();
+	private int reportInterval = Math.max(0, OverlayConfiguration.getInstance().getInt("report-interval", 1000));
+	private TimerTask ratePrinter;
+	
+	// Each print also probes the nodes to time the round trip of control messages under load. The
+	// probes are status requests with negative rounds, so they never mix with the drain's rounds
+	private int pingRound = 0;
+	private long pingStart;
+	private LatencyHistogram controlRoundTrip = new LatencyHistogram();
+	
+	private EventLoop eventLoop;
 	
 	public Registry(int portNum) {
+		eventLoop = new EventLoop("registry-event-loop", new Node() {
+			public void onEvent(Event e) {
+				handleEvent(e);
+			}
+		});
+		eventLoop.start();
+		
 		try {
 			nodePorts = new HashMap<Integer, Integer>();
+			idBits = Math.max(1, Math.min(RoutingTable.MAX_ID_BITS, OverlayConfiguration.getInstance().getInt("id-bits", RoutingTable.DEFAULT_ID_BITS)));
+			idAllocator = new NodeIDAllocator(idBits, OverlayConfiguration.getInstance().getString("id-alloc", "random").equalsIgnoreCase("hash"));
 			server = new TCPServerThread(portNum, this);
 			dataset = new TCPConnectionsCache();
 			Thread thread = new Thread(server);
@@ -72,56 +145,82 @@ public class Registry implements Node {
 		return server.getHostName();
 	}
 	
+	/***
+	 * Called by the receiver threads. The event is only posted to the event loop, which
+	 * hands it to handleEvent.
+	 */
 	@Override
 	public void onEvent(Event e) {
-		switch(e.getType()) {
-			case Protocol.OVERLAY_NODE_SENDS_REGISTRATION:
-				// Node registers
-				try {
-					String message = "";
-					int id = -1;
-					
-					OverlayNodeSendsRegistration event = (OverlayNodeSendsRegistration) e;
-					
-					InetAddress addr = InetAddress.getByAddress(event.getIPAddress());
-					
-					TCPConnection connection = server.getUnNamedConnections().get(addr).get(0);
-					
-					if (connection.equals(null)) {
-						message = ("Error: IP address given does not match any connections");
-					} else if (dataset.containsValue(connection)) {
-						message = ("Error: valid connection already exists");
-					} else {
-						server.removeConnection(addr, connection);
-						Random generator = new Random();
-						id = generator.nextInt(128);
-						
-						int timeout = 0;
-						while (dataset.containsKey(id)) {
-							id = generator.nextInt(128);
-							timeout++;
-							if (timeout == 128) {
-								message = ("All keys taken");
-								id = -1;
-								break;
-							}
-						}
-						dataset.add(id, connection);
-						nodePorts.put(id, event.getPort());
-						message = "Registration request successful. The number of messaging nodes currently consituting the overlay is (" + dataset.size() + ")";
-						System.out.println(message);
-					}
-					
-//					synchronized (this) {
-						RegistryReportsRegistrationStatus registrationStatus = new RegistryReportsRegistrationStatus(Protocol.REGISTRY_REPORTS_REGISTRATION_STATUS, id, message);
-						connection.sendData(registrationStatus.getBytes());
-//					}
-					
-				} catch (IOException e1) {
-					System.out.println("Error in overlay node registration: " + e1.getMessage());
-					e1.printStackTrace();
+		// A registration has to be answered on the connection it came in on, which is only known here on the reader's thread
+		if (e.getType() == Protocol.OVERLAY_NODE_SENDS_REGISTRATION) {
+			final OverlayNodeSendsRegistration registration = (OverlayNodeSendsRegistration) e;
+			final TCPConnection origin = TCPConnection.getDeliveringConnection();
+			eventLoop.post(new Runnable() {
+				public void run() {
+					register(registration, origin);
 				}
-				break;
+			});
+			return;
+		}
+		eventLoop.post(e);
+	}
+	
+	/***
+	 * Runs a task on the event loop, after everything that has already been posted
+	 * @param task the task to run
+	 */
+	public void post(Runnable task) {
+		eventLoop.post(task);
+	}
+	
+	/***
+	 * Registers a node. A registration that matches no unregistered connection (a second one from the
+	 * same connection, or one giving the wrong address) gets a failure status with id -1 on the
+	 * connection it arrived on, so the node isn't left waiting for an answer.
+	 * @param event the registration
+	 * @param origin the connection the registration arrived on
+	 */
+	private void register(OverlayNodeSendsRegistration event, TCPConnection origin) {
+		try {
+			String message = "";
+			int id = -1;
+			
+			InetAddress addr = InetAddress.getByAddress(event.getIPAddress());
+			
+			// Taking the connection out of the server's unregistered ones means it can only register once
+			TCPConnection connection = server.claimConnection(addr, event.getConnectionPort());
+			
+			if (connection == null) {
+				System.out.println("Error: address given does not match any unregistered connection");
+				message = "Error: address given does not match any unregistered connection, or the connection is already registered";
+				connection = origin;
+				if (connection == null) {
+					return;
+				}
+			} else {
+				id = idAllocator.allocate(event.getIPAddress(), event.getPort());
+				if (id == -1) {
+					message = ("All keys taken");
+					server.releaseConnection(connection);
+				} else {
+					dataset.add(id, connection);
+					nodePorts.put(id, event.getPort());
+					message = "Registration request successful. The number of messaging nodes currently consituting the overlay is (" + dataset.size() + ")";
+					System.out.println(message);
+				}
+			}
+			
+			RegistryReportsRegistrationStatus registrationStatus = new RegistryReportsRegistrationStatus(Protocol.REGISTRY_REPORTS_REGISTRATION_STATUS, id, message);
+			connection.sendEvent(registrationStatus);
+		} catch (IOException e1) {
+			System.out.println("Error in overlay node registration: " + e1.getMessage());
+			e1.printStackTrace();
+		}
+	}
+	
+	// All of the registry's state is changed here (or in tasks posted to the loop), always on the loop thread
+	private void handleEvent(Event e) {
+		switch(e.getType()) {
 			case Protocol.NODE_REPORTS_OVERLAY_SETUP_STATUS:
 				NodeReportsOverlaySetupStatus overlaySetupStatus = (NodeReportsOverlaySetupStatus) e;
 				String info = overlaySetupStatus.getMessage();
@@ -133,11 +232,12 @@ public class Registry implements Node {
 	//						System.out.println("Received node overlay setup status from: " + status);
 				}
 				
-				synchronized (this) {
-					numOfSetupNodes++;
-				}
+				numOfSetupNodes++;
+				slowestSetup = Math.max(slowestSetup, overlaySetupStatus.getSetupTime());
 				
 				if (numOfSetupNodes == dataset.size()) {
+					double buildTime = (System.nanoTime() - overlayStart) / 1000000.0;
+					System.out.printf("Overlay built in %.1f ms (slowest node connected in %.1f ms)\n", buildTime, slowestSetup / 1000.0);
 					System.out.println("Registry is ready to initiate tasks.");
 				}
 				break;
@@ -146,36 +246,23 @@ public class Registry implements Node {
 				
 				int nodeid = event.getID();
 				
-				synchronized (this) {
-					finished_nodes++;
-					System.out.println("Node " + nodeid + " reports task finished. A total of (" + this.finished_nodes + ") have finished");
-				}
+				finished_nodes++;
+				System.out.println("Node " + nodeid + " reports task finished. A total of (" + this.finished_nodes + ") have finished");
 				
-				// Check to see if all nodes have finished (if so, send traffic summary request)
+				// Check to see if all nodes have finished (if so, wait for the messages to drain)
 				if (finished_nodes == dataset.size()) {
-					try {
-						// Sleep to make sure all messages have been passed
-						Thread.sleep(20000);
-					} catch (InterruptedException e2) {
-						e2.printStackTrace();
-					}
 					finished_nodes = 0;
-					
-//					synchronized (this) {
-						RegistryRequestsTrafficSummary trafficSummaryEvent = new RegistryRequestsTrafficSummary(Protocol.REGISTRY_REQUESTS_TRAFFIC_SUMMARY);
-						Iterator<Integer> iter = dataset.getKeys().iterator();
-						while (iter.hasNext()) {
-							Integer id = iter.next();
-							try {
-								dataset.getConnection(id).sendData(trafficSummaryEvent.getBytes());
-							} catch (IOException e1) {
-								System.out.println("Error when sending traffic request in registry: " + e1.getMessage());
-								e1.printStackTrace();
-							}
-						}
-//					}
+					startDrain();
 				}
 				break;
+			case Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_STATUS:
+				OverlayNodeReportsTrafficStatus trafficStatus = (OverlayNodeReportsTrafficStatus) e;
+				addStatus(trafficStatus);
+				break;
+			case Protocol.OVERLAY_NODE_REPORTS_THROUGHPUT:
+				OverlayNodeReportsThroughput report = (OverlayNodeReportsThroughput) e;
+				throughput.add(report.getSent(), report.getRelayed(), report.getReceived());
+				break;
 			case Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY:
 				OverlayNodeReportsTrafficSummary trafficSummary = (OverlayNodeReportsTrafficSummary) e;
 				addStats(trafficSummary);
@@ -197,7 +284,8 @@ public class Registry implements Node {
 						if (IPequals(nodeIP, dataset.getIPAddress(nodeID))) {
 							connection = dataset.getConnection(nodeID);
 							dataset.remove(nodeID);
-							server.addConnection(connection, InetAddress.getByAddress(nodeIP));
+							idAllocator.release(nodeID);
+							server.releaseConnection(connection);
 							message = "Node has been deregistered. Number of nodes in overlay " + dataset.size();
 						} else {
 							error = false;
@@ -206,25 +294,9 @@ public class Registry implements Node {
 							connection = dataset.getConnection(nodeID);
 						}
 					} else {
-						if (server.getUnNamedConnections().containsKey(InetAddress.getByAddress(nodeIP))) {
-							if (server.getUnNamedConnections().get(InetAddress.getByAddress(nodeIP)).size() != 0) {
-								int numSearched = 0;
-								for (int i = 0; i < server.getUnNamedConnections().get(InetAddress.getByAddress(nodeIP)).size(); i++){
-									if (server.getUnNamedConnections().get(InetAddress.getByAddress(nodeIP)).get(i).getPort() == nodePort) {
-										connection = server.getUnNamedConnections().get(InetAddress.getByAddress(nodeIP)).get(i);
-										break;
-									} else {
-										numSearched++;
-									}
-								}
-								
-								if (numSearched == server.getUnNamedConnections().get(InetAddress.getByAddress(nodeIP)).size()) {
-									error = true;
-								}
-							} else {
-								error = true;
-							}
-						} else {
+						// Look for the unregistered connection the request came from
+						connection = server.findConnection(InetAddress.getByAddress(nodeIP), nodePort);
+						if (connection == null) {
 							error = true;
 						}
 						message = "Node not registered with overlay";
@@ -234,7 +306,7 @@ public class Registry implements Node {
 					if (!error) {
 //						synchronized (this) {
 							RegistryReportsDeregistrationStatus deRegStatus = new RegistryReportsDeregistrationStatus(Protocol.REGISTRY_REPORTS_DEREGISTRATION_STATUS, nodeID, message);
-							connection.sendData(deRegStatus.getBytes());
+							connection.sendEvent(deRegStatus);
 						}
 //					}
 				} catch (IOException e1) {
@@ -247,9 +319,133 @@ public class Registry implements Node {
 		} 
 	}
 	
-	// Synchronized so that the stats variable will not miss an update from one of the threads. (Comodification error)
-	private synchronized void addStats(OverlayNodeReportsTrafficSummary event) {
-		stats.addInformation(event.getID(), event.getTotalSent(), event.getTotalRelayed(), event.getTotalReceived(), event.getSumSent(), event.getSumReceived());
+	/***
+	 * Starts waiting for the messages to drain. This is called once every node has reported its task
+	 * finished, so the total sent can't grow any more. The nodes are probed until the total received
+	 * matches it, backing off between rounds. Frames can be lost (a node dies, a relay fails), so
+	 * the probing stops after drain-timeout and the summaries are requested with what arrived.
+	 */
+	private void startDrain() {
+		drainStart = System.nanoTime();
+		drainRounds = 0;
+		statusDelay = MIN_STATUS_DELAY;
+		draining = true;
+		lastSent = -1;
+		lastReceived = -1;
+		final int drain = ++drains;
+		statusTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				eventLoop.post(new Runnable() {
+					public void run() {
+						// A later drain has its own deadline
+						if (draining && drains == drain) {
+							drainTimedOut();
+						}
+					}
+				});
+			}
+		}, drainTimeout);
+		sendStatusRequest();
+	}
+	
+	private void drainTimedOut() {
+		draining = false;
+		if (lastSent < 0) {
+			System.out.printf("Gave up waiting for the messages to drain after %d ms: not every node answered the status probes\n", drainTimeout);
+		} else {
+			System.out.printf("Gave up waiting for the messages to drain after %d ms: %d of %d messages missing (%d status rounds)\n",
+					drainTimeout, lastSent - lastReceived, lastSent, drainRounds);
+		}
+		requestTrafficSummaries();
+	}
+	
+	// Sends a new round of status probes to every node
+	private void sendStatusRequest() {
+		statusRound++;
+		drainRounds++;
+		statusReplies = 0;
+		statusSent = 0;
+		statusReceived = 0;
+		
+		RegistryRequestsTrafficStatus statusEvent = new RegistryRequestsTrafficStatus(Protocol.REGISTRY_REQUESTS_TRAFFIC_STATUS, statusRound);
+		int[] ids = dataset.getIDs();
+		for (int id : ids) {
+			try {
+				dataset.getConnection(id).sendEvent(statusEvent);
+			} catch (IOException e1) {
+				System.out.println("Error when sending traffic status request in registry: " + e1.getMessage());
+				e1.printStackTrace();
+			}
+		}
+	}
+	
+	private void addStatus(OverlayNodeReportsTrafficStatus event) {
+		if (event.getRound() < 0) {
+			if (event.getRound() == pingRound) {
+				controlRoundTrip.record((System.nanoTime() - pingStart) / 1000);
+			}
+			return;
+		}
+		
+		// Ignore answers to an older round
+		if (event.getRound() != statusRound) {
+			return;
+		}
+		
+		statusReplies++;
+		statusSent += event.getTotalSent();
+		statusReceived += event.getTotalReceived();
+		if (!draining || statusReplies < dataset.size()) {
+			return;
+		}
+		
+		lastSent = statusSent;
+		lastReceived = statusReceived;
+		if (statusSent == statusReceived) {
+			draining = false;
+			double drainTime = (System.nanoTime() - drainStart) / 1000000.0;
+			System.out.printf("All %d messages delivered. Drain time: %.1f ms (%d status rounds)\n", statusSent, drainTime, drainRounds);
+			requestTrafficSummaries();
+		} else {
+			// The timer only posts the next round, it is sent from the event loop
+			statusTimer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					eventLoop.post(new Runnable() {
+						public void run() {
+							if (draining) {
+								sendStatusRequest();
+							}
+						}
+					});
+				}
+			}, statusDelay);
+			statusDelay = Math.min(statusDelay * 2, MAX_STATUS_DELAY);
+		}
+	}
+	
+	// Asks every node for its traffic summary
+	private void requestTrafficSummaries() {
+		stopRatePrinter();
+		if (controlRoundTrip.getCount() > 0) {
+			System.out.println("Control round trip during the task (us): p50 " + controlRoundTrip.getValueAtPercentile(50) + ", p99 " + controlRoundTrip.getValueAtPercentile(99)
+					+ ", max " + controlRoundTrip.getMax() + " (" + controlRoundTrip.getCount() + " replies)");
+		}
+		RegistryRequestsTrafficSummary trafficSummaryEvent = new RegistryRequestsTrafficSummary(Protocol.REGISTRY_REQUESTS_TRAFFIC_SUMMARY);
+		int[] ids = dataset.getIDs();
+		for (int id : ids) {
+			try {
+				dataset.getConnection(id).sendEvent(trafficSummaryEvent);
+			} catch (IOException e1) {
+				System.out.println("Error when sending traffic request in registry: " + e1.getMessage());
+				e1.printStackTrace();
+			}
+		}
+	}
+	
+	private void addStats(OverlayNodeReportsTrafficSummary event) {
+		stats.addInformation(event.getID(), event.getTotalSent(), event.getTotalRelayed(), event.getTotalReceived(), event.getSumSent(), event.getSumReceived(), event.getLatency());
 		int statsize = stats.getSize();
 //		System.out.println("Overlay node (" + event.getID() + ") sent information. Total number of nodes reporting: " + statsize);
 		if (statsize == numOfNodes) {
@@ -275,9 +471,8 @@ public class Registry implements Node {
 	public void generateOverlay(int numEntries) {
 		overlay = new HashMap<Integer, ArrayList<Integer>>();
 		
-		Set<Integer> ids = dataset.getKeys();
-		Integer[] idsSorted = new Integer[dataset.size()];
-		ids.toArray(idsSorted);
+		// getIDs returns the cache's own array, so it is copied before sorting
+		int[] idsSorted = dataset.getIDs().clone();
 		Arrays.sort(idsSorted);
 		
 		for (int numNodes = 0; numNodes < idsSorted.length; numNodes++) {
@@ -296,66 +491,198 @@ public class Registry implements Node {
 		
 		numOfNodes = overlay.size();
 		
+		numOfSetupNodes = 0;
+		slowestSetup = 0;
+		overlayStart = System.nanoTime();
 		sendOverlayMessages(numEntries);
 		
 	}
 	
+	/***
+	 * Sends every node its manifest. The list of all the nodes is encoded once and shared by the
+	 * manifests. The manifests are split between a few dispatcher threads (one per core at most),
+	 * which encode all of them before any is sent, then write them out on their own connections.
+	 */
 	private void sendOverlayMessages(int numEntries) {
+		long start = System.nanoTime();
+		byte[] nodeList = RegistrySendsNodeManifest.encodeNodeList(dataset.getIDs(), idBits);
+		
+		int[] nodeIDs = new int[overlay.size()];
+		int count = 0;
+		for (int id : overlay.keySet()) {
+			nodeIDs[count++] = id;
+		}
+		
+		int threads = Math.max(1, Math.min(nodeIDs.length, Runtime.getRuntime().availableProcessors()));
+		CountDownLatch encoded = new CountDownLatch(threads);
+		ManifestDispatcher[] dispatchers = new ManifestDispatcher[threads];
+		for (int i = 0; i < threads; i++) {
+			dispatchers[i] = new ManifestDispatcher(i, threads, nodeIDs, numEntries, nodeList, encoded);
+			dispatchers[i].start();
+		}
+		
 		try {
-			Iterator<Integer> iter = overlay.keySet().iterator();
+			encoded.await();
+			long encodeEnd = System.nanoTime();
+			for (ManifestDispatcher dispatcher : dispatchers) {
+				dispatcher.join();
+			}
+			long sendEnd = System.nanoTime();
 			
-			while (iter.hasNext()) {
+			System.out.printf("Sent %d manifests on %d threads: encoded in %.1f ms, dispatched in %.1f ms\n",
+					nodeIDs.length, threads, (encodeEnd - start) / 1000000.0, (sendEnd - encodeEnd) / 1000000.0);
+		} catch (InterruptedException e) {
+			System.out.println("Interrupted while sending node manifests");
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/***
+	 * Encodes and sends the manifests of every threads-th node, starting at first. The encoded
+	 * latch lets every dispatcher finish encoding before the sending starts.
+	 */
+	private class ManifestDispatcher extends Thread {
+		private int first, step, numEntries;
+		private int[] nodeIDs;
+		private byte[] nodeList;
+		private CountDownLatch encoded;
+		
+		private ManifestDispatcher(int first, int step, int[] nodeIDs, int numEntries, byte[] nodeList, CountDownLatch encoded) {
+			this.first = first;
+			this.step = step;
+			this.nodeIDs = nodeIDs;
+			this.numEntries = numEntries;
+			this.nodeList = nodeList;
+			this.encoded = encoded;
+		}
+		
+		public void run() {
+			byte[][] manifests = new byte[(nodeIDs.length - first + step - 1) / step][];
+			try {
+				for (int i = first, m = 0; i < nodeIDs.length; i += step, m++) {
+					ArrayList<Integer> entries = overlay.get(nodeIDs[i]);
+					ArrayList<Integer> hids = new ArrayList<Integer>(entries.size());
+					ArrayList<byte[]> ips = new ArrayList<byte[]>(entries.size());
+					ArrayList<Integer> ports = new ArrayList<Integer>(entries.size());
+					
+					for (int nodeID : entries) {
+						hids.add(nodeID);
+						ips.add(dataset.getIPAddress(nodeID));
+						ports.add(nodePorts.get(nodeID));
+					}
+					
+					RegistrySendsNodeManifest event = new RegistrySendsNodeManifest(Protocol.REGISTRY_SENDS_NODE_MANIFEST, numEntries, hids, ips, ports, nodeList);
+					manifests[m] = event.getBytes();
+				}
+			} catch (IOException e) {
+				System.out.println("Error in encoding node manifests: " + e.getMessage());
+				e.printStackTrace();
+			} finally {
+				encoded.countDown();
+			}
 			
-				ArrayList<Integer> hids = new ArrayList<Integer>();
-				ArrayList<byte[]> ips = new ArrayList<byte[]>();
-				ArrayList<Integer> ports = new ArrayList<Integer>();
-				
-				Integer num = iter.next();
-				for (int i = 0; i < overlay.get(num).size(); i++) {
-					int nodeID = overlay.get(num).get(i);
-					hids.add(nodeID);
-					ips.add(dataset.getIPAddress(nodeID));
-					ports.add(nodePorts.get(nodeID));
+			try {
+				encoded.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			for (int i = first, m = 0; i < nodeIDs.length; i += step, m++) {
+				if (manifests[m] == null) {
+					continue;
 				}
-				
-				Set<Integer> ids = dataset.getKeys();
-				Iterator<Integer> idIter = ids.iterator();
-				
-				int[] nodes = new int[overlay.size()];
-				int count = 0;
-				while (idIter.hasNext()) {
-					nodes[count] = idIter.next();
-					count++;
+				try {
+					dataset.getConnection(nodeIDs[i]).sendData(manifests[m]);
+				} catch (IOException e) {
+					System.out.println("Error in sending node manifest to node " + nodeIDs[i] + ": " + e.getMessage());
+					e.printStackTrace();
 				}
-				
-//				synchronized (this) {
-					RegistrySendsNodeManifest event = new RegistrySendsNodeManifest(Protocol.REGISTRY_SENDS_NODE_MANIFEST, numEntries, hids, ips, ports, nodes);
-					dataset.getConnection(num).sendData(event.getBytes());
-//				}
 			}
-		} catch (IOException e) {
-			System.out.println("Error in sending node manifests: " + e.getMessage());
-			e.printStackTrace();
 		}
 	}
 	
-	public synchronized void sendTaskInitiateMessage(int numMessages) {
+	public void sendTaskInitiateMessage(int numMessages) {
+		sendTaskInitiateMessage(numMessages, 0);
+	}
+	
+	/***
+	 * Tells every node to start sending
+	 * @param numMessages the number of messages each node sends (ignored for a timed task)
+	 * @param seconds how long each node sends for, or 0 to send numMessages
+	 */
+	public void sendTaskInitiateMessage(int numMessages, int seconds) {
+		WorkloadSpec workload;
 		try {
-			RegistryRequestsTaskInitiate event = new RegistryRequestsTaskInitiate(Protocol.REGISTRY_REQUESTS_TASK_INITIATE, numMessages);
-			byte[] data = event.getBytes();
-			Set<Integer> nodes = dataset.getKeys();
-			Iterator<Integer> iter = nodes.iterator();
+			workload = seconds > 0 ? WorkloadSpec.forDuration(seconds) : WorkloadSpec.fromConfiguration(numMessages);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Error in the workload options: " + e.getMessage());
+			return;
+		}
+		
+		try {
+			System.out.println("Starting task: " + workload);
+			RegistryRequestsTaskInitiate event = new RegistryRequestsTaskInitiate(Protocol.REGISTRY_REQUESTS_TASK_INITIATE, workload);
+			int[] nodes = dataset.getIDs();
 			
-			while(iter.hasNext()) {
-				dataset.getConnection(iter.next()).sendData(data);
+			for (int id : nodes) {
+				dataset.getConnection(id).sendEvent(event);
 			}
-		
+			startRatePrinter();
 		} catch (IOException e ) {
 			System.out.println("Error in sending task initiate messages: " + e.getMessage());
 			e.printStackTrace();
 		}
 	}
 	
+	// Prints the throughput every report interval until the traffic summaries are requested
+	private void startRatePrinter() {
+		stopRatePrinter();
+		throughput.reset();
+		controlRoundTrip = new LatencyHistogram();
+		if (reportInterval == 0) {
+			return;
+		}
+		
+		// The timer only posts the print, the monitor is read on the event loop
+		ratePrinter = new TimerTask() {
+			@Override
+			public void run() {
+				final TimerTask printer = this;
+				eventLoop.post(new Runnable() {
+					public void run() {
+						if (ratePrinter == printer) {
+							throughput.printRate();
+							sendPing();
+						}
+					}
+				});
+			}
+		};
+		// Printing half way between the nodes' reports keeps each one in the period it belongs to
+		statusTimer.scheduleAtFixedRate(ratePrinter, reportInterval + reportInterval / 2, reportInterval);
+	}
+	
+	// Sends a status request that only the control round trip is measured from
+	private void sendPing() {
+		pingRound--;
+		pingStart = System.nanoTime();
+		RegistryRequestsTrafficStatus ping = new RegistryRequestsTrafficStatus(Protocol.REGISTRY_REQUESTS_TRAFFIC_STATUS, pingRound);
+		for (int id : dataset.getIDs()) {
+			try {
+				dataset.getConnection(id).sendEvent(ping);
+			} catch (IOException e1) {
+				System.out.println("Error when sending control probe in registry: " + e1.getMessage());
+			}
+		}
+	}
+	
+	private void stopRatePrinter() {
+		if (ratePrinter != null) {
+			ratePrinter.cancel();
+			ratePrinter = null;
+		}
+	}
+	
 	public void printOverlayToConsole() {
 		Iterator<Integer> iter = overlay.keySet().iterator();
 		try {
@@ -380,10 +707,9 @@ public class Registry implements Node {
 	}
 	
 	public void listMessagingNodes() {
-		Iterator<Integer> iter = dataset.getKeys().iterator();
+		int[] ids = dataset.getIDs();
 		try {
-			while (iter.hasNext()) {
-				int id = iter.next();
+			for (int id : ids) {
 				TCPConnection connection = dataset.getConnection(id);
 				String host = InetAddress.getByAddress(connection.getConnectedAddress()).getHostName();
 				System.out.println("Node ID: " + id + ", host name: " + host + ", port: " + connection.getPort()); 
@@ -394,21 +720,76 @@ public class Registry implements Node {
 		}
 	}
 	
+	// Runs a console command (as parsed by the InteractiveCommandParser)
+	private void runCommand(int[] commandArray) {
+		switch(commandArray == null ? -1 : commandArray[0]) {
+			case 1:
+				// Call list subroutine
+				listMessagingNodes();
+				break;
+			case 2:
+				// call generate overlay
+				// Without an entry number the tables get enough entries to reach any node in log2(N) hops
+				int maxEntries = RoutingTable.entriesFor(dataset.size());
+				int numEntries = commandArray.length == 2 ? commandArray[1] : maxEntries;
+				if (numEntries < 1 || numEntries > maxEntries) {
+					System.out.println("Error! The number of entries must be from 1 to " + maxEntries + " for " + dataset.size() + " nodes.");
+				} else {
+					generateOverlay(numEntries);
+				}
+				break;
+			case 3:
+				// print overlay
+				printOverlayToConsole();
+				break;
+			case 4:
+				// Call registry task initiate
+				if (commandArray.length != 2) {
+					System.out.println("Error! Need a number of messages to send");
+				} else {
+					if (overlay == null || overlay.size() == 0) {
+						System.out.println("Error! Must setup the overlay before attempting to send any messages. ");
+					} else {
+						sendTaskInitiateMessage(commandArray[1]);
+					}
+				}
+				break;
+			case 5:
+				// Call registry task initiate for a timed task
+				if (commandArray.length != 2 || commandArray[1] <= 0) {
+					System.out.println("Error! Need a number of seconds to send for");
+				} else if (overlay == null || overlay.size() == 0) {
+					System.out.println("Error! Must setup the overlay before attempting to send any messages. ");
+				} else {
+					sendTaskInitiateMessage(0, commandArray[1]);
+				}
+				break;
+			default: 
+				System.out.println("Unknown command.");
+				System.out.println("Please try again with legal commands: ");
+				System.out.println("\t list-messaging-nodes");
+				System.out.println("\t setup-overlay [num_entries]");
+				System.out.println("\t list-routing-tables");
+				System.out.println("\t start <num_messages>");
+				System.out.println("\t start-for <seconds>");
+		}
+	}
+	
 	public static String usage() {
-		return "Registry <portnum>";
+		return "Registry <portnum> [transport=blocking|nio] [selectors=<num_threads>] [outbound=sync|async] [id-bits=<bits>] [id-alloc=random|hash]"
+				+ " [workload=max|rate:<n>|window:<n>] [dist=uniform|zipf:<s>|hotspot:<frac>:<prob>|nearest:<k>] [seed=<n>] [report-interval=<ms>] [drain-timeout=<ms>]";
 	}
 	
 	public static void main (String[] args) {
-		if (args.length != 1) {
+		if (args.length < 1) {
 			System.out.println(usage());
 		} else {
-			Registry newReg = new Registry(Integer.parseInt(args[0]));
+			OverlayConfiguration.getInstance().parse(args, 1);
+			final Registry newReg = new Registry(Integer.parseInt(args[0]));
 			Scanner input = new Scanner(System.in);
 			
 			String command = "";
 			
-			int[] commandArray;
-			
 			InteractiveCommandParser parser = new InteractiveCommandParser("registry");
 			
 			while (true) {
@@ -416,48 +797,13 @@ public class Registry implements Node {
 				if (command.equalsIgnoreCase("exit")) {
 					break;
 				} else {
-					commandArray = parser.parse(command);
-					switch(commandArray[0]) {
-						case 1:
-							// Call list subroutine
-							newReg.listMessagingNodes();
-							break;
-						case 2:
-							// call generate overlay
-							if (commandArray.length != 2) {
-								System.out.println("Error! Need a entry number");
-							} else {
-								if (commandArray[1] > 5) {
-									System.out.println("Error! Can't have that many entries.");
-								} else {
-									newReg.generateOverlay(commandArray[1]);
-								}
-							}
-							break;
-						case 3:
-							// print overlay
-							newReg.printOverlayToConsole();
-							break;
-						case 4:
-							// Call registry task initiate
-							if (commandArray.length != 2) {
-								System.out.println("Error! Need a number of messages to send");
-							} else {
-								if (newReg.overlay.size() == 0) {
-									System.out.println("Error! Must setup the overlay before attempting to send any messages. ");
-								} else {
-									newReg.sendTaskInitiateMessage(commandArray[1]);
-								}
-							}
-							break;
-						default: 
-							System.out.println("Unknown command.");
-							System.out.println("Please try again with legal commands: ");
-							System.out.println("\t list-messaging-nodes");
-							System.out.println("\t setup-overlay <num_entries>");
-							System.out.println("\t list-routing-tables");
-							System.out.println("\t start <num_messages>");
-					}
+					// The command is run on the event loop like everything else that changes the registry
+					final int[] commandArray = parser.parse(command);
+					newReg.post(new Runnable() {
+						public void run() {
+							newReg.runCommand(commandArray);
+						}
+					});
 				}
 			}
 			
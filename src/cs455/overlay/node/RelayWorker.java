@@ -0,0 +1,238 @@
+package cs455.overlay.node;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import cs455.overlay.transport.FlowControl;
+import cs455.overlay.transport.TCPConnection;
+import cs455.overlay.util.ControlWakeup;
+import cs455.overlay.wireformats.OverlayNodeSendsDataBatch;
+
+/***
+ * One stage of a messaging node's relay pipeline. Frames that need to be forwarded are put on
+ * the worker's bounded queue and the worker thread sends them on, sleeping while the queue is empty.
+ * The queue holds single marshalled frames (byte[]) and batches (OverlayNodeSendsDataBatch). The
+ * records of the batches are batched again by their next hop, and whatever is left over is sent
+ * whenever the queue runs dry.
+ *
+ * The node always gives frames for the same destination to the same worker, so they leave in the
+ * order they came in. When the queue is full submit blocks, which slows the sender down instead of
+ * letting the queue grow without limit. A selector thread (transport=nio) must not block, so its
+ * item is set aside and the connection it came in on stops being read until the worker has moved
+ * the items set aside into the queue. A reader that is blocked or paused doesn't give back the
+ * credits of its connection meanwhile, so the node upstream stops sending too once it has used up
+ * its credits and overdraft (see FlowControl). The credit of a frame is given back once the worker
+ * has sent it on (for a batch, once its records have been sent).
+ *
+ * Acks go on a separate control queue that has no limit. The worker sends whatever is on it before
+ * each data item, so an ack never waits behind a full data queue (see ControlWakeup).
+ *
+ * @author acarbona
+ *
+ */
+public class RelayWorker extends Thread {
+	private MessagingNode owner;
+	private ArrayBlockingQueue<Object> queue;
+	private ConcurrentLinkedQueue<byte[]> control = new ConcurrentLinkedQueue<byte[]>();
+	private ControlWakeup wakeup;
+	private DataBatcher batcher;
+	private volatile int maxDepth = 0;
+	
+	// Items from selector threads that found the queue full, and the connections paused because of them
+	private ArrayList<Object> overflow = new ArrayList<Object>();
+	private ArrayList<TCPConnection> paused = new ArrayList<TCPConnection>();
+	private volatile boolean overflowing = false;
+
+	/***
+	 * @param owner the node the frames are relayed for
+	 * @param capacity the most frames that can wait in the queue
+	 * @param batchSize the number of records to put in each batch that is relayed
+	 */
+	public RelayWorker(MessagingNode owner, int capacity, int batchSize) {
+		this.owner = owner;
+		queue = new ArrayBlockingQueue<Object>(capacity);
+		wakeup = new ControlWakeup(queue, control);
+		batcher = new DataBatcher(owner, batchSize, true);
+		setDaemon(true);
+	}
+
+	/***
+	 * Queues a marshalled OverlayNodeSendsData frame to be relayed. Blocks while the queue is full
+	 * (or pauses the connection, on a selector thread).
+	 * @param frame the frame to forward
+	 * @param credit where to return the frame's credit once it is sent, or null
+	 */
+	public void submit(byte[] frame, FlowControl credit) {
+		put(credit == null ? frame : new Credited(frame, credit));
+	}
+
+	/***
+	 * Queues a batch of records to be relayed. Blocks while the queue is full (or pauses the
+	 * connection, on a selector thread).
+	 * @param batch the records to forward
+	 * @param credit where to return the batch's credit once it is sent, or null
+	 */
+	public void submit(OverlayNodeSendsDataBatch batch, FlowControl credit) {
+		put(credit == null ? batch : new Credited(batch, credit));
+	}
+
+	/***
+	 * Queues a marshalled OverlayNodeAcksData frame to be relayed ahead of the waiting data. Never blocks.
+	 * @param frame the frame to forward
+	 */
+	public void submitControl(byte[] frame) {
+		control.add(frame);
+		wakeup.controlAdded();
+	}
+
+	private void put(Object item) {
+		TCPConnection from = TCPConnection.getDeliveringConnection();
+		if (from != null && from.canPauseReading()) {
+			synchronized (overflow) {
+				// Once items are set aside the rest have to wait behind them to keep their order
+				if (!overflowing && queue.offer(item)) {
+					updateMaxDepth();
+					return;
+				}
+				overflow.add(item);
+				overflowing = true;
+				if (!paused.contains(from)) {
+					paused.add(from);
+					from.pauseReading();
+				}
+			}
+			return;
+		}
+		
+		try {
+			queue.put(item);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		updateMaxDepth();
+	}
+	
+	// Moves the items set aside into the queue, and resumes the paused connections once they all fit
+	private void refill() {
+		synchronized (overflow) {
+			int moved = 0;
+			while (moved < overflow.size() && queue.offer(overflow.get(moved))) {
+				moved++;
+			}
+			overflow.subList(0, moved).clear();
+			if (overflow.isEmpty()) {
+				overflowing = false;
+				for (TCPConnection connection : paused) {
+					connection.resumeReading();
+				}
+				paused.clear();
+			}
+		}
+	}
+	
+	private void updateMaxDepth() {
+		// Only a rough high water mark is needed, so a lost update between threads doesn't matter
+		int depth = queue.size();
+		if (depth > maxDepth) {
+			maxDepth = depth;
+		}
+	}
+
+	/***
+	 * @return the number of frames waiting to be relayed
+	 */
+	public int getDepth() {
+		return queue.size();
+	}
+
+	/***
+	 * @return the most frames that have been waiting at once
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public void run() {
+		// The credits of batches are held until the batches they were put into are flushed
+		ArrayList<FlowControl> owed = new ArrayList<FlowControl>();
+		while (true) {
+			Object item;
+			try {
+				item = wakeup.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			// Work through everything that is waiting before sending the partly filled batches
+			do {
+				byte[] frame;
+				while ((frame = control.poll()) != null) {
+					relayItem(frame, owed);
+				}
+				if (overflowing) {
+					refill();
+				}
+				if (item != ControlWakeup.WAKE) {
+					relayItem(item, owed);
+				}
+			} while ((item = queue.poll()) != null);
+			
+			try {
+				owner.flushRelays(batcher);
+			} catch (Exception e) {
+				System.out.println("Error sending the relayed batches: " + e.getMessage());
+				e.printStackTrace();
+			}
+			
+			for (FlowControl credit : owed) {
+				credit.returnCredit();
+			}
+			owed.clear();
+		}
+	}
+	
+	/***
+	 * Relays one item. A failure only loses that item (the next hop may have gone away), the worker
+	 * carries on and the item's credit is still given back.
+	 */
+	private void relayItem(Object item, ArrayList<FlowControl> owed) {
+		FlowControl credit = null;
+		if (item instanceof Credited) {
+			credit = ((Credited) item).credit;
+			item = ((Credited) item).item;
+		}
+		
+		try {
+			if (item instanceof byte[]) {
+				owner.relay((byte[]) item);
+			} else {
+				owner.relay((OverlayNodeSendsDataBatch) item, batcher);
+				// Held until the batches it went into are flushed
+				if (credit != null) {
+					owed.add(credit);
+					credit = null;
+				}
+			}
+		} catch (Exception e) {
+			System.out.println("Error relaying: " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			if (credit != null) {
+				credit.returnCredit();
+			}
+		}
+	}
+
+	// A queued item along with the connection its credit goes back to
+	private static class Credited {
+		private Object item;
+		private FlowControl credit;
+
+		private Credited(Object item, FlowControl credit) {
+			this.item = item;
+			this.credit = credit;
+		}
+	}
+}
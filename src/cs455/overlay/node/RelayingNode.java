@@ -0,0 +1,24 @@
+package cs455.overlay.node;
+
+import java.nio.ByteBuffer;
+
+/***
+ * Interface for nodes that can handle data frames without turning them into events.
+ *
+ * When the owner of a connection implements it, the receivers hand every OverlayNodeSendsData
+ * frame to onDataFrame first. Only if the node declines the frame is it decoded and given to onEvent.
+ *
+ * @author acarbona
+ *
+ */
+public interface RelayingNode extends Node {
+	/***
+	 * onDataFrame looks at a marshalled OverlayNodeSendsData frame. The buffer holds exactly the
+	 * frame (from its position to its limit) and is only valid until the method returns, so the node
+	 * must copy anything it wants to keep.
+	 *
+	 * @param frame the marshalled frame
+	 * @return true if the frame was handled, false if it should be decoded and given to onEvent
+	 */
+	public boolean onDataFrame(ByteBuffer frame);
+}
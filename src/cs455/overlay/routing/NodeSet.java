@@ -0,0 +1,77 @@
+package cs455.overlay.routing;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/***
+ * The ids of all the nodes in the overlay, as a bitset for membership tests and a sorted array
+ * for picking a node at random. It is built from a manifest and never changes afterwards.
+ *
+ * In a big id space with few nodes the bitset would be mostly empty, so it is only kept while
+ * it is no bigger than a few words per node. Otherwise contains searches the sorted array.
+ *
+ * @author acarbona
+ *
+ */
+public class NodeSet {
+	private long[] bits;
+	private int[] members;
+
+	/***
+	 * @param ids the node ids (in any order, without repeats)
+	 */
+	public NodeSet(int[] ids) {
+		members = ids.clone();
+		Arrays.sort(members);
+
+		int max = members.length == 0 ? 0 : members[members.length - 1];
+		if ((max >> 6) < 4 * members.length + 16) {
+			bits = new long[(max >> 6) + 1];
+			for (int id : members) {
+				bits[id >> 6] |= 1L << id;
+			}
+		}
+	}
+
+	/***
+	 * @param id the id to check
+	 * @return true if the node is in the overlay
+	 */
+	public boolean contains(int id) {
+		if (bits == null) {
+			return Arrays.binarySearch(members, id) >= 0;
+		}
+		int word = id >> 6;
+		return id >= 0 && word < bits.length && (bits[word] & (1L << id)) != 0;
+	}
+
+	public int size() {
+		return members.length;
+	}
+
+	/***
+	 * @return the ids in ascending order. The array is shared, so it must not be modified
+	 */
+	public int[] getMembers() {
+		return members;
+	}
+
+	/***
+	 * Picks a node uniformly at random from every node but one, without retrying
+	 * @param generator the random number generator to use
+	 * @param exclude the id that can't be picked (usually the calling node)
+	 * @return the id picked
+	 */
+	public int randomMember(Random generator, int exclude) {
+		if (!contains(exclude)) {
+			return members[generator.nextInt(members.length)];
+		}
+
+		// Pick from one fewer index and step over the excluded node
+		int index = generator.nextInt(members.length - 1);
+		if (members[index] >= exclude) {
+			index++;
+		}
+		return members[index];
+	}
+}
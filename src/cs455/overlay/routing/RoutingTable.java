@@ -1,42 +1,109 @@
 package cs455.overlay.routing;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Hashtable;
 
 /***
- * The data structure that organizes and holds the routing table for a node. 
+ * The data structure that organizes and holds the routing table for a node.
  * It also computes the next node to send a package to.
- * 
+ *
+ * The table only changes when a manifest arrives, so once the node list is populated the
+ * next hop for every id in the id space is worked out ahead of time and kept in an array.
+ * getDest is then a single array load. An id space too big for that array (more than
+ * MAX_ARRAY_BITS bits) keeps the entries sorted by distance instead, and getDest does a binary
+ * search over them, which is still only a few comparisons for a table of log2(N) entries.
+ *
  * @author acarbona
  *
  */
 public class RoutingTable {
+	// Node ids are handed out by the registry from 0 to 2^idBits - 1
+	public static final int DEFAULT_ID_BITS = 7;
+	public static final int MAX_ID_BITS = 31;
+	private static final int MAX_ARRAY_BITS = 16;
+
 	private Hashtable<Integer, Integer> entries;
 	private int myID;
-	private ArrayList<Integer> allNodes;
-	
+	private int idBits;
+	private long idSpace;
+	private NodeSet allNodes;
+	private int[] nextHop;
+	private long[] entryDistances;
+	private int[] entryIDs;
+
 	/***
 	 * The constructor for the routing table. It requires the id of it's creating node
 	 * to determine where to send the node
 	 * @param myID The id of the creating node
 	 */
 	public RoutingTable(int myID) {
+		this(myID, DEFAULT_ID_BITS);
+	}
+
+	/***
+	 * The same as the constructor above, for an id space other than the default
+	 * @param myID The id of the creating node
+	 * @param idBits The number of bits in a node id (from 1 to MAX_ID_BITS)
+	 */
+	public RoutingTable(int myID, int idBits) {
 		// Clear variables and setup the routing table for entries
 		entries = new Hashtable<Integer, Integer>();
 		this.myID = myID;
-		allNodes = new ArrayList<Integer>();
+		this.idBits = idBits;
+		idSpace = 1L << idBits;
+		allNodes = new NodeSet(new int[0]);
 	}
-	
+
+	/***
+	 * Works out how many entries each routing table needs so any node can be reached in
+	 * O(log N) hops, which is the smallest k with 2^k >= N
+	 * @param numNodes the number of nodes in the overlay
+	 * @return the number of entries (at least 1)
+	 */
+	public static int entriesFor(int numNodes) {
+		return Math.max(1, 32 - Integer.numberOfLeadingZeros(numNodes - 1));
+	}
+
+	public int getIDBits() {
+		return idBits;
+	}
+
 	/***
 	 * Populate the overall node list. The routing table needs to know what nodes exist in the
-	 * overall overlay in order to determine certain corner cases
+	 * overall overlay in order to determine certain corner cases. All of the entries must have been
+	 * added first because this is when the next hop array is built.
 	 * @param nodes A list of all the node ids in the overlay
 	 */
-	public void populateNodeList(ArrayList<Integer> nodes) {
+	public void populateNodeList(NodeSet nodes) {
 		allNodes = nodes;
+
+		// Sort the entries by how far around the circle they are
+		int[] ids = new int[entries.size()];
+		long[] distances = new long[entries.size()];
+		int count = 0;
+		for (int entry : entries.values()) {
+			long entryDistance = distance(myID, entry);
+			int slot = count++;
+			while (slot > 0 && distances[slot - 1] > entryDistance) {
+				distances[slot] = distances[slot - 1];
+				ids[slot] = ids[slot - 1];
+				slot--;
+			}
+			distances[slot] = entryDistance;
+			ids[slot] = entry;
+		}
+		entryDistances = distances;
+		entryIDs = ids;
+
+		if (idBits <= MAX_ARRAY_BITS) {
+			int[] compiled = new int[(int) idSpace];
+			for (int destid = 0; destid < compiled.length; destid++) {
+				compiled[destid] = computeDest(destid);
+			}
+			nextHop = compiled;
+		}
 	}
-	
+
 	/***
 	 * Adds an entry into the routing table
 	 * @param id the id of the node
@@ -45,74 +112,66 @@ public class RoutingTable {
 	public void add(int id, int hops) {
 		entries.put(hops, id);
 	}
-	
+
 	/***
-	 * Generates which id to send the package to. It relies on three cases:
-	 * 	1. The node is directly connected (exists in the routing table)
-	 * 	2. The node is greater than the highest node on the list (i.e. its greater than 4 hops away)
-	 * 	3. The node is a "gap node". It is in between two listings
-	 * 
+	 * Looks up which id to send the package to in the precomputed next hop array (or the sorted
+	 * entries for a large id space).
+	 *
 	 * @param destid Where the packet needs to go
 	 * @return the id to send the packet to
 	 */
-	public int getDest(int destid){
-		int sendTo = -1;
+	public int getDest(int destid) {
+		int[] hops = nextHop;
+		if (hops != null) {
+			return hops[destid];
+		}
+
 		// Make sure that the allNodes array has been populated
-		if (allNodes.size() != 0) {
-			// Case 1
-			if (entries.containsValue(destid)) {
-				sendTo = destid;
-			// Case 2
-			} else if (destid > Collections.max(entries.values())) {
-				sendTo = Collections.max(entries.values());
-			// Case 3
-			} else {
-				// Two possible subcases: The destination is less than the current id (must go around the circle)
-				// or the destination is greater
-				if (destid < myID) {
-					// If the destination is less, start at the farthest out node and work backwards
-					for (int i = entries.size() - 1; i > 0; i--) {
-						// If the destination id is greater than the entry, then we send it to that entry
-						if (destid > entries.get((int) Math.pow(2, i))) {
-							sendTo = entries.get((int) Math.pow(2, i));
-							break;
-						}
-					}
-					
-					// If sendTo -1 that means, no entry was found that had worked. This is a special
-					// corner case in the algorithm. The solution is the send it to the highest id of all the nodes
-					if (sendTo == -1) {
-						sendTo = Collections.max(entries.values());
-					}
-				} else {
-					// Else the destination is greater (meaning we shouldn't go around the circle)
-					// Start at the lowest number of hops away and check each gap.
-					for (int i = 1; i < entries.size(); i++) {
-						// If it is greater than the entry before but less than the entry after, send it to the entry before
-						if (destid < entries.get((int) Math.pow(2, i)) && destid > entries.get((int) Math.pow(2, i-1))) {
-							sendTo = entries.get((int) Math.pow(2, i-1));
-							break;
-						}
-					}
-					
-					// If sendTo is -1 then we hit a special corner case where we are attempting to send it to the smallest
-					// id. Therefore we need to send it to the largest id in our routing table
-					if (sendTo == -1) {
-						sendTo = Collections.max(entries.values());
-					}
-				}
-			}
-		} else {
+		int[] ids = entryIDs;
+		if (ids == null) {
 			System.out.println("Must populate all nodes list in routing table.");
 			System.exit(-1);
 		}
-		
-		// This ensures we don't attempt to send to -1. The algorithm should not ever allow sendTo to equal -1
-		if (sendTo == -1) {
-			System.out.println("Error sending to -1. Source: " + myID + ", Destination: " + destid);
-			System.exit(-1);
+
+		// Find the last entry that doesn't pass the destination
+		long[] distances = entryDistances;
+		int index = Arrays.binarySearch(distances, distance(myID, destid));
+		if (index < 0) {
+			index = -index - 2;
 		}
-		
+		return index < 0 ? -1 : ids[index];
+	}
+
+	/***
+	 * Works out which id to send the package to from the entries. The package goes to the entry that
+	 * is farthest around the circle (clockwise from this node) without passing the destination. The
+	 * entry one hop away is the next node on the circle, so there is always an entry to use.
+	 *
+	 * This is what populateNodeList uses to build the next hop array. It is public so the result
+	 * can be checked against getDest.
+	 *
+	 * @param destid Where the packet needs to go
+	 * @return the id to send the packet to, or -1 if there are no entries
+	 */
+	public int computeDest(int destid) {
+		int sendTo = -1;
+		long bestDistance = -1;
+		long destDistance = distance(myID, destid);
+
+		for (int entry : entries.values()) {
+			long entryDistance = distance(myID, entry);
+			// The destination itself is the farthest an entry can be without passing it
+			if (entryDistance <= destDistance && entryDistance > bestDistance) {
+				sendTo = entry;
+				bestDistance = entryDistance;
+			}
+		}
+
 		return sendTo;
 	}
+
+	// The number of ids between from and to going clockwise around the circle
+	private long distance(int from, int to) {
+		return (((long) to - from) % idSpace + idSpace) % idSpace;
+	}
 }
@@ -0,0 +1,117 @@
+package cs455.overlay.test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import cs455.overlay.util.NodeIDAllocator;
+
+/***
+ * Checks the NodeIDAllocator through a storm of joins and leaves. Random allocations and releases
+ * (in random and hash mode, for dense and sparse id spaces) are compared with a plain set of the ids
+ * handed out: size() and isAllocated must agree with it after every step, no id may be handed out
+ * twice, and once everything is released the whole id space must be allocatable again.
+ *
+ * Usage:
+ *
+ * java cs455.overlay.test.NodeIDAllocatorCheck [operations] [seed]
+ *
+ * @author acarbona
+ *
+ */
+public class NodeIDAllocatorCheck {
+
+	public static void main(String[] args) {
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 455;
+
+		int failures = 0;
+		int[] bitSizes = { 2, 7, 20 };
+		for (int idBits : bitSizes) {
+			for (int mode = 0; mode < 2; mode++) {
+				boolean hashed = mode == 1;
+				String name = "id-bits=" + idBits + (hashed ? " hash" : " random");
+				String error = check(idBits, hashed, operations, new Random(seed));
+				if (error == null) {
+					System.out.println(name + ": ok");
+				} else {
+					System.out.println(name + ": FAILED - " + error);
+					failures++;
+				}
+			}
+		}
+
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	// Returns a description of the first inconsistency, or null if there was none
+	private static String check(int idBits, boolean hashed, int operations, Random random) {
+		NodeIDAllocator allocator = new NodeIDAllocator(idBits, hashed, new Random(random.nextLong()));
+		long idSpace = 1L << idBits;
+		HashSet<Integer> expected = new HashSet<Integer>();
+		ArrayList<Integer> held = new ArrayList<Integer>();
+		// Keep the sparse spaces small enough for the final fill
+		int maxHeld = (int) Math.min(idSpace, 1024);
+
+		for (int i = 0; i < operations; i++) {
+			if (!held.isEmpty() && (held.size() == maxHeld || random.nextBoolean())) {
+				int id = held.remove(random.nextInt(held.size()));
+				allocator.release(id);
+				// Releasing twice must do nothing
+				allocator.release(id);
+				expected.remove(id);
+				if (allocator.isAllocated(id)) {
+					return "released id " + id + " is still allocated";
+				}
+			} else {
+				byte[] ip = { 10, 0, (byte) random.nextInt(256), (byte) random.nextInt(256) };
+				int id = allocator.allocate(ip, random.nextInt(65536));
+				if (id < 0 || id >= idSpace) {
+					return "allocated id " + id + " with " + expected.size() + " of " + idSpace + " taken";
+				}
+				if (!expected.add(id)) {
+					return "id " + id + " handed out twice";
+				}
+				held.add(id);
+				if (!allocator.isAllocated(id)) {
+					return "allocated id " + id + " is reported free";
+				}
+			}
+
+			if (allocator.size() != expected.size()) {
+				return "size() is " + allocator.size() + " after step " + i + ", expected " + expected.size();
+			}
+		}
+
+		// Every id that was handed out must be allocated, every other one free
+		if (idSpace <= 1024) {
+			for (int id = 0; id < idSpace; id++) {
+				if (allocator.isAllocated(id) != expected.contains(id)) {
+					return "isAllocated(" + id + ") is " + allocator.isAllocated(id);
+				}
+			}
+		}
+
+		for (int id : held) {
+			allocator.release(id);
+		}
+		if (allocator.size() != 0) {
+			return "size() is " + allocator.size() + " after releasing everything";
+		}
+
+		// A dense space must give out every id again
+		if (idSpace <= 1024) {
+			for (int i = 0; i < idSpace; i++) {
+				if (allocator.allocate() < 0) {
+					return "only " + i + " of " + idSpace + " ids could be allocated again";
+				}
+			}
+			if (allocator.allocate() >= 0) {
+				return "more ids allocated than the space holds";
+			}
+		}
+		return null;
+	}
+}
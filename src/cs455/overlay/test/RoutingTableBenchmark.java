@@ -0,0 +1,150 @@
+package cs455.overlay.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Random;
+
+import cs455.overlay.routing.NodeSet;
+import cs455.overlay.routing.RoutingTable;
+
+/***
+ * Compares the cost of the routing table lookups. Builds the routing tables for a random overlay
+ * (the same way the registry picks ids and hands out entries) and times three lookups over the same
+ * random destinations:
+ * 	1. legacy - the Hashtable scan that getDest used before the next hop array
+ * 	2. compute - RoutingTable.computeDest, which walks the entries for every lookup
+ * 	3. array - RoutingTable.getDest, the precomputed next hop array (a binary search over the
+ * 	   entries when id_bits is too big for the array)
+ *
+ * Before timing it checks that getDest agrees with computeDest for every node in the overlay.
+ *
+ * Usage:
+ *
+ * java cs455.overlay.test.RoutingTableBenchmark [nodes] [entries] [lookups] [id_bits]
+ *
+ * @author acarbona
+ *
+ */
+public class RoutingTableBenchmark {
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int numNodes = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int numEntries = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int numLookups = args.length > 2 ? Integer.parseInt(args[2]) : 10000000;
+		int idBits = args.length > 3 ? Integer.parseInt(args[3]) : RoutingTable.DEFAULT_ID_BITS;
+
+		Random generator = new Random(455);
+
+		// Pick unique ids and sort them into the circle
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		while (ids.size() < numNodes) {
+			int id = (int) (generator.nextLong() & ((1L << idBits) - 1));
+			if (!ids.contains(id)) {
+				ids.add(id);
+			}
+		}
+		Collections.sort(ids);
+
+		int[] idArray = new int[numNodes];
+		for (int i = 0; i < numNodes; i++) {
+			idArray[i] = ids.get(i);
+		}
+		NodeSet nodes = new NodeSet(idArray);
+
+		// Build each node's table the same way MessagingNode does from its manifest
+		RoutingTable[] tables = new RoutingTable[numNodes];
+		ArrayList<Hashtable<Integer, Integer>> legacyEntries = new ArrayList<Hashtable<Integer, Integer>>(numNodes);
+		for (int i = 0; i < numNodes; i++) {
+			tables[i] = new RoutingTable(ids.get(i), idBits);
+			legacyEntries.add(new Hashtable<Integer, Integer>());
+			for (int j = 0; j < numEntries; j++) {
+				int hops = (int) Math.pow(2, j);
+				int hopID = ids.get((i + hops) % numNodes);
+				tables[i].add(hopID, hops);
+				legacyEntries.get(i).put(hops, hopID);
+			}
+			tables[i].populateNodeList(nodes);
+		}
+
+		for (int i = 0; i < numNodes; i++) {
+			for (int destid : ids) {
+				if (destid != ids.get(i) && tables[i].getDest(destid) != tables[i].computeDest(destid)) {
+					System.out.println("Lookup mismatch at node " + ids.get(i) + " for destination " + destid);
+					System.exit(-1);
+				}
+			}
+		}
+
+		// The same random (source, destination) pairs are used for every lookup
+		int[] sources = new int[numLookups];
+		int[] destinations = new int[numLookups];
+		for (int i = 0; i < numLookups; i++) {
+			sources[i] = generator.nextInt(numNodes);
+			int dest = generator.nextInt(numNodes);
+			while (dest == sources[i]) {
+				dest = generator.nextInt(numNodes);
+			}
+			destinations[i] = ids.get(dest);
+		}
+
+		System.out.println("Nodes: " + numNodes + ", entries: " + numEntries + ", lookups: " + numLookups);
+		for (int round = 1; round <= ROUNDS; round++) {
+			long sink = 0;
+
+			long start = System.nanoTime();
+			for (int i = 0; i < numLookups; i++) {
+				sink += legacyDest(legacyEntries.get(sources[i]), ids.get(sources[i]), destinations[i]);
+			}
+			long legacy = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < numLookups; i++) {
+				sink += tables[sources[i]].computeDest(destinations[i]);
+			}
+			long compute = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < numLookups; i++) {
+				sink += tables[sources[i]].getDest(destinations[i]);
+			}
+			long array = System.nanoTime() - start;
+
+			// Printing the sink stops the lookups being optimised away
+			System.out.printf("Round %d: legacy %.2f ns/op, compute %.2f ns/op, array %.2f ns/op (%d)%n", round,
+					(double) legacy / numLookups, (double) compute / numLookups, (double) array / numLookups, sink);
+		}
+	}
+
+	// The lookup getDest used before the next hop array, kept here to measure against
+	private static int legacyDest(Hashtable<Integer, Integer> entries, int myID, int destid) {
+		int sendTo = -1;
+		if (entries.containsValue(destid)) {
+			sendTo = destid;
+		} else if (destid > Collections.max(entries.values())) {
+			sendTo = Collections.max(entries.values());
+		} else if (destid < myID) {
+			for (int i = entries.size() - 1; i > 0; i--) {
+				if (destid > entries.get((int) Math.pow(2, i))) {
+					sendTo = entries.get((int) Math.pow(2, i));
+					break;
+				}
+			}
+			if (sendTo == -1) {
+				sendTo = Collections.max(entries.values());
+			}
+		} else {
+			for (int i = 1; i < entries.size(); i++) {
+				if (destid < entries.get((int) Math.pow(2, i)) && destid > entries.get((int) Math.pow(2, i-1))) {
+					sendTo = entries.get((int) Math.pow(2, i-1));
+					break;
+				}
+			}
+			if (sendTo == -1) {
+				sendTo = Collections.max(entries.values());
+			}
+		}
+		return sendTo;
+	}
+}
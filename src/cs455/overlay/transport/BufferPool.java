@@ -0,0 +1,136 @@
+package cs455.overlay.transport;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * A singleton pool of byte arrays used to receive frames, so that the receivers do not
+ * allocate a new array for every frame.
+ *
+ * Arrays come in power of two size classes from 64 bytes to 64 KB. Each thread keeps a few
+ * arrays of each class for itself (the receiver that acquires an array normally releases it too),
+ * and there is a lock free shared queue per class for arrays released by other threads.
+ * Frames larger than the biggest class are allocated and left for the garbage collector.
+ *
+ * An acquired array may be longer than the frame. Every wireformat is self-delimiting so the
+ * extra bytes at the end are never read.
+ *
+ * @author acarbona
+ *
+ */
+public class BufferPool {
+	// START: This portion makes it singleton (there will only be one instance per machine)
+	private static BufferPool instance = new BufferPool();
+
+	public static BufferPool getInstance() {
+		return instance;
+	}
+	// END
+
+	private static final int MIN_SHIFT = 6;
+	private static final int MAX_SHIFT = 16;
+	private static final int NUM_CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+	private static final int LOCAL_CAPACITY = 8;
+	private static final int SHARED_CAPACITY = 256;
+
+	private ThreadLocal<LocalCache> local;
+	private ConcurrentLinkedQueue<byte[]>[] shared;
+	private AtomicInteger[] sharedSizes;
+	private LongAdder hits, misses;
+
+	// The arrays kept by a single thread, per size class
+	private static class LocalCache {
+		private byte[][][] buffers = new byte[NUM_CLASSES][LOCAL_CAPACITY][];
+		private int[] counts = new int[NUM_CLASSES];
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private BufferPool() {
+		local = new ThreadLocal<LocalCache>() {
+			@Override
+			protected LocalCache initialValue() {
+				return new LocalCache();
+			}
+		};
+		shared = new ConcurrentLinkedQueue[NUM_CLASSES];
+		sharedSizes = new AtomicInteger[NUM_CLASSES];
+		for (int i = 0; i < NUM_CLASSES; i++) {
+			shared[i] = new ConcurrentLinkedQueue<byte[]>();
+			sharedSizes[i] = new AtomicInteger();
+		}
+		hits = new LongAdder();
+		misses = new LongAdder();
+	}
+
+	// Gets the size class that can hold the given number of bytes
+	private static int sizeClass(int size) {
+		if (size <= (1 << MIN_SHIFT)) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	/***
+	 * Gets an array that is at least the given size
+	 * @param size the number of bytes needed
+	 * @return an array of at least size bytes
+	 */
+	public byte[] acquire(int size) {
+		int sizeClass = sizeClass(size);
+		if (sizeClass >= NUM_CLASSES) {
+			misses.increment();
+			return new byte[size];
+		}
+
+		LocalCache cache = local.get();
+		if (cache.counts[sizeClass] > 0) {
+			hits.increment();
+			int index = --cache.counts[sizeClass];
+			byte[] buffer = cache.buffers[sizeClass][index];
+			cache.buffers[sizeClass][index] = null;
+			return buffer;
+		}
+
+		byte[] buffer = shared[sizeClass].poll();
+		if (buffer != null) {
+			sharedSizes[sizeClass].decrementAndGet();
+			hits.increment();
+			return buffer;
+		}
+
+		misses.increment();
+		return new byte[1 << (sizeClass + MIN_SHIFT)];
+	}
+
+	/***
+	 * Returns an array to the pool. The caller must not use the array afterwards.
+	 * @param buffer an array that came from acquire
+	 */
+	public void release(byte[] buffer) {
+		int length = buffer.length;
+		int sizeClass = sizeClass(length);
+		if (sizeClass >= NUM_CLASSES || length != (1 << (sizeClass + MIN_SHIFT))) {
+			// Not one of the pooled sizes
+			return;
+		}
+
+		LocalCache cache = local.get();
+		if (cache.counts[sizeClass] < LOCAL_CAPACITY) {
+			cache.buffers[sizeClass][cache.counts[sizeClass]++] = buffer;
+		} else if (sharedSizes[sizeClass].incrementAndGet() <= SHARED_CAPACITY) {
+			shared[sizeClass].add(buffer);
+		} else {
+			sharedSizes[sizeClass].decrementAndGet();
+		}
+	}
+
+	// Getters for the pool statistics
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+}
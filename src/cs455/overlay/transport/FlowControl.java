@@ -0,0 +1,305 @@
+package cs455.overlay.transport;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs455.overlay.util.OverlayConfiguration;
+import cs455.overlay.wireformats.OverlayNodeGrantsCredits;
+import cs455.overlay.wireformats.Protocol;
+
+/***
+ * Credit based flow control for the data frames (OverlayNodeSendsData and OverlayNodeSendsDataBatch)
+ * on one connection.
+ *
+ * The sending end starts with credits=<frames> credits (4096 by default, 0 turns the limit off)
+ * and uses one per data frame. The receiving end gives a credit back once it has dealt with a frame.
+ * A frame that is delivered is dealt with as soon as the owner returns. A node that queues the frame
+ * to be relayed calls takeReturn while it is handling it and returns the credit itself once the
+ * frame has been sent on, so credits only come back as fast as the relay queues drain and the queues
+ * never hold more than the credits of the connections coming in. The credits are returned in
+ * OverlayNodeGrantsCredits messages, a few at a time, and a timer sends whatever is left every few
+ * milliseconds. Credits are always returned, whatever the receiving end's own limit is. The grants
+ * go out with TCPConnection.sendControl, so a reader or the timer never waits on a connection
+ * whose other end has stopped reading.
+ *
+ * What a sender does without credits is up to it: tryAcquire lets it drop the frame, acquire waits
+ * (for a while or for ever) and overdraw sends anyway. Overdrawn credits are paid back by the
+ * returns like any other, so the count still ends up where it started.
+ *
+ * overdraw only goes overdraft=<frames> credits below zero (as many as there are credits by
+ * default), so at most credits plus overdraft frames are waiting at the receiving end. Past that
+ * it waits for a grant. If none comes within the wait the receiving end is taken to be stuck
+ * waiting on this end (relays waiting on each other around a ring), and overdraw sends without
+ * waiting until the next grant arrives.
+ *
+ * A connection is only polled by the timer from its first returned credit until it closes.
+ * Once it closes no more credits are handed out, and a sender waiting in acquire gives up at once.
+ *
+ * @author acarbona
+ *
+ */
+public class FlowControl {
+	private static final int MAX_GRANT_BATCH = 64;
+	private static final long FLUSH_INTERVAL_MS = 2;
+
+	// The connections that have received data frames, for the timer to return their credits
+	private static CopyOnWriteArrayList<FlowControl> receiving = new CopyOnWriteArrayList<FlowControl>();
+	private static Timer flusher;
+	
+	// The connection whose data frame the reader is handing to the owner, until the owner takes it
+	private static ThreadLocal<FlowControl> handling = new ThreadLocal<FlowControl>();
+
+	private TCPConnection connection;
+	private int limit;
+	private int grantBatch;
+
+	// The sending end
+	private int credits;
+	private int overdraft;
+	private long overdrafts = 0;
+	// Set when a wait past the overdraft ran out with nothing granted, until the next grant
+	private boolean stalled = false;
+	private boolean closed = false;
+
+	// The receiving end
+	private AtomicInteger toReturn = new AtomicInteger(0);
+	private volatile boolean registered = false;
+
+	/***
+	 * @param connection the connection the credits are for (and the returns are sent on)
+	 */
+	public FlowControl(TCPConnection connection) {
+		this.connection = connection;
+		limit = Math.max(0, OverlayConfiguration.getInstance().getInt("credits", 4096));
+		credits = limit;
+		overdraft = Math.max(0, OverlayConfiguration.getInstance().getInt("overdraft", limit));
+		grantBatch = limit == 0 ? MAX_GRANT_BATCH : Math.max(1, Math.min(MAX_GRANT_BATCH, limit / 4));
+	}
+
+	/***
+	 * @param type the type of a frame
+	 * @return true if frames of this type need credits
+	 */
+	public static boolean isDataFrame(byte type) {
+		return type == Protocol.OVERLAY_NODE_SENDS_DATA || type == Protocol.OVERLAY_NODE_SENDS_DATA_BATCH;
+	}
+
+	/***
+	 * Takes a credit if there is one
+	 * @return true if the frame can be sent (false once the connection has closed)
+	 */
+	public synchronized boolean tryAcquire() {
+		if (closed) {
+			return false;
+		}
+		if (limit == 0) {
+			return true;
+		}
+		if (credits > 0) {
+			credits--;
+			return true;
+		}
+		return false;
+	}
+
+	/***
+	 * Takes a credit, waiting for one if there are none
+	 * @param timeout the most milliseconds to wait, or a negative number to wait for ever
+	 * @return true if a credit was taken, false if the time ran out (or the thread was interrupted,
+	 * or the connection closed)
+	 */
+	public synchronized boolean acquire(long timeout) {
+		if (closed) {
+			return false;
+		}
+		if (limit == 0) {
+			return true;
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			while (credits <= 0) {
+				if (closed) {
+					return false;
+				}
+				if (timeout < 0) {
+					wait();
+				} else {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						return false;
+					}
+					wait(remaining);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		credits--;
+		return true;
+	}
+
+	/***
+	 * Takes a credit even if there are none left. Within the overdraft this never waits. Past it, it
+	 * waits for a grant, but for no more than the given time after which it overdraws anyway (and
+	 * keeps doing so without waiting until credits are granted again).
+	 * @param timeout the most milliseconds to wait past the overdraft
+	 * @return true if the frame can be sent, false if the connection closed (or the thread was interrupted)
+	 */
+	public synchronized boolean overdraw(long timeout) {
+		if (closed) {
+			return false;
+		}
+		if (limit == 0) {
+			return true;
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			while (credits <= -overdraft && !stalled) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					stalled = true;
+					break;
+				}
+				wait(remaining);
+				if (closed) {
+					return false;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		if (credits <= 0) {
+			overdrafts++;
+		}
+		credits--;
+		return true;
+	}
+
+	/***
+	 * @return true if a frame could be sent without waiting
+	 */
+	public synchronized boolean hasCredit() {
+		return !closed && (limit == 0 || credits > 0);
+	}
+
+	/***
+	 * @return true once the connection has closed
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/***
+	 * @return the credits left (negative while overdrawn)
+	 */
+	public synchronized int getCredits() {
+		return credits;
+	}
+
+	/***
+	 * @return the number of frames sent without a credit
+	 */
+	public synchronized long getOverdrafts() {
+		return overdrafts;
+	}
+
+	// Called by the reader when an OverlayNodeGrantsCredits message arrives
+	synchronized void granted(int count) {
+		if (limit == 0) {
+			return;
+		}
+		credits += count;
+		stalled = false;
+		notifyAll();
+	}
+
+	/***
+	 * Called by the owner while it handles a data frame it is going to deal with later (by relaying
+	 * it). The reader then leaves the credit to the owner, who must call returnCredit once it is done.
+	 * @return the flow control to return the credit to, or null if there is none to take
+	 */
+	public static FlowControl takeReturn() {
+		FlowControl flow = handling.get();
+		if (flow != null) {
+			handling.set(null);
+		}
+		return flow;
+	}
+
+	// Called by the reader before it hands a data frame to the owner
+	void handing() {
+		handling.set(this);
+	}
+
+	// Called by the reader after the owner is done with a data frame. Returns the credit unless the owner took it
+	void handed() {
+		if (handling.get() == this) {
+			handling.set(null);
+			returnCredit();
+		}
+	}
+
+	/***
+	 * Gives back the credit of one data frame received on the connection
+	 */
+	public void returnCredit() {
+		if (!registered) {
+			register();
+		}
+		if (toReturn.incrementAndGet() >= grantBatch) {
+			returnCredits();
+		}
+	}
+
+	private void returnCredits() {
+		int count = toReturn.getAndSet(0);
+		if (count == 0) {
+			return;
+		}
+		try {
+			connection.sendControl(new OverlayNodeGrantsCredits(Protocol.OVERLAY_NODE_GRANTS_CREDITS, count));
+		} catch (IOException e) {
+			System.out.println("Error returning credits: " + e.getMessage());
+		}
+	}
+
+	// Called when the connection closes, so the timer stops looking at it and the senders waiting for
+	// credits give up. It stays marked registered so credits returned after the close don't add it back
+	synchronized void closed() {
+		receiving.remove(this);
+		registered = true;
+		closed = true;
+		notifyAll();
+	}
+
+	private synchronized void register() {
+		if (registered) {
+			return;
+		}
+		receiving.add(this);
+		registered = true;
+		startFlusher();
+	}
+
+	private static synchronized void startFlusher() {
+		if (flusher != null) {
+			return;
+		}
+		flusher = new Timer("credit-flusher", true);
+		flusher.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				for (FlowControl flow : receiving) {
+					flow.returnCredits();
+				}
+			}
+		}, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS);
+	}
+}
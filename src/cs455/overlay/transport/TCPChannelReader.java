@@ -0,0 +1,99 @@
+package cs455.overlay.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import cs455.overlay.node.Node;
+import cs455.overlay.node.RelayingNode;
+import cs455.overlay.wireformats.EventFactory;
+import cs455.overlay.wireformats.OverlayNodeGrantsCredits;
+import cs455.overlay.wireformats.Protocol;
+
+/***
+ * The non-blocking counterpart of the TCPReceiverThread. It is called by a selector thread
+ * whenever the channel has data. A read may return part of a frame or several frames at once,
+ * so the bytes are collected in a buffer and every complete length-prefixed frame is turned into
+ * an Event and given to the owner's onEvent method. Any partial frame is kept for the next read.
+ * Each frame is decoded in place straight out of the read buffer, nothing is copied out first.
+ * Data frames are offered to a RelayingNode owner before they are decoded. Credit returns go to the
+ * connection's FlowControl, which is also told about every data frame once the owner is done with it.
+ *
+ * @author acarbona
+ *
+ */
+public class TCPChannelReader {
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private SocketChannel channel;
+	private Node owner;
+	private RelayingNode relayingOwner;
+	private ByteBuffer buffer;
+	private FlowControl flow;
+
+	public TCPChannelReader(SocketChannel channel, Node owner, FlowControl flow) {
+		this.channel = channel;
+		this.owner = owner;
+		if (owner instanceof RelayingNode) {
+			relayingOwner = (RelayingNode) owner;
+		}
+		buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		this.flow = flow;
+	}
+
+	/***
+	 * Reads whatever is available on the channel and dispatches the complete frames.
+	 * @return false if the other end closed the connection
+	 * @throws IOException
+	 */
+	public boolean read() throws IOException {
+		int numRead = channel.read(buffer);
+		if (numRead == -1) {
+			return false;
+		}
+
+		buffer.flip();
+		while (buffer.remaining() >= 4) {
+			int dataLength = buffer.getInt(buffer.position());
+			if (buffer.remaining() < dataLength + 4) {
+				// Make sure the buffer can hold the whole frame before waiting for the rest of it
+				if (dataLength + 4 > buffer.capacity()) {
+					ByteBuffer larger = ByteBuffer.allocate(dataLength + 4);
+					larger.put(buffer);
+					larger.flip();
+					buffer = larger;
+				}
+				break;
+			}
+
+			// Limit the buffer to this frame while the event is decoded from it
+			int frameEnd = buffer.position() + 4 + dataLength;
+			int limit = buffer.limit();
+			buffer.position(buffer.position() + 4);
+			buffer.limit(frameEnd);
+			byte type = buffer.get(buffer.position());
+			try {
+				if (type == Protocol.OVERLAY_NODE_GRANTS_CREDITS) {
+					flow.granted(new OverlayNodeGrantsCredits(buffer).getCount());
+				} else {
+					boolean dataFrame = FlowControl.isDataFrame(type);
+					if (dataFrame) {
+						flow.handing();
+					}
+					if (relayingOwner == null || type != Protocol.OVERLAY_NODE_SENDS_DATA
+							|| !relayingOwner.onDataFrame(buffer)) {
+						owner.onEvent(EventFactory.getInstance().createEvent(buffer));
+					}
+					if (dataFrame) {
+						flow.handed();
+					}
+				}
+			} finally {
+				buffer.limit(limit);
+				buffer.position(frameEnd);
+			}
+		}
+		buffer.compact();
+		return true;
+	}
+}
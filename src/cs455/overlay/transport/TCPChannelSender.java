@@ -0,0 +1,263 @@
+package cs455.overlay.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import cs455.overlay.wireformats.Event;
+
+/***
+ * The non-blocking counterpart of the TCPSender. The calling thread writes the frame straight
+ * to the channel when nothing is waiting to be sent. If the socket buffer is full the rest of the
+ * frame is queued and the selector thread finishes the write once the channel becomes writable.
+ *
+ * In asynchronous mode (outbound=async) the calling thread never writes. Frames go on a lock free
+ * queue and the selector thread drains it with gathering writes of up to MAX_FRAMES_PER_WRITE frames.
+ *
+ * sendData and sendEvent put the frame straight into a direct buffer that is reused for every write.
+ * Only the part the socket would not take is copied out to be queued.
+ *
+ * Control frames (anything but OverlayNodeSendsData and OverlayNodeSendsDataBatch) are queued apart
+ * from the data and sent first, as soon as the frame being written (or, in asynchronous mode, the
+ * gathering write under way) is finished.
+ *
+ * @author acarbona
+ *
+ */
+public class TCPChannelSender {
+	private static final int MAX_FRAMES_PER_WRITE = 256;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private SocketChannel channel;
+	private LinkedList<ByteBuffer> pending;
+	private LinkedList<ByteBuffer> pendingControl;
+	// The frame the socket has taken part of, which has to be finished before any other
+	private ByteBuffer writing;
+	private volatile SelectionKey key;
+	private TCPSelectorThread selector;
+	private ByteBuffer buffer;
+
+	// Only used in asynchronous mode
+	private ConcurrentLinkedQueue<ByteBuffer> outbound;
+	private ConcurrentLinkedQueue<ByteBuffer> outboundControl;
+	private AtomicBoolean writeRequested;
+	private ByteBuffer[] gather;
+	private int gatherStart, gatherEnd = 0;
+
+	public TCPChannelSender(SocketChannel channel) {
+		this(channel, false);
+	}
+
+	public TCPChannelSender(SocketChannel channel, boolean asynchronous) {
+		this.channel = channel;
+		pending = new LinkedList<ByteBuffer>();
+		pendingControl = new LinkedList<ByteBuffer>();
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		if (asynchronous) {
+			outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+			outboundControl = new ConcurrentLinkedQueue<ByteBuffer>();
+			writeRequested = new AtomicBoolean(false);
+			gather = new ByteBuffer[MAX_FRAMES_PER_WRITE];
+		}
+	}
+
+	/***
+	 * Called once the channel has been registered with a selector thread. If frames were queued
+	 * before registration then the selector is asked to write them.
+	 * @param key the selection key of the channel
+	 * @param selector the selector thread servicing the channel
+	 */
+	public synchronized void registered(SelectionKey key, TCPSelectorThread selector) {
+		this.selector = selector;
+		this.key = key;
+		if (queued() || (outbound != null && !(outbound.isEmpty() && outboundControl.isEmpty()))) {
+			key.interestOpsOr(SelectionKey.OP_WRITE);
+		}
+	}
+
+	/***
+	 * sendData will write out the length of the data then the data to the channel. It is
+	 * synchronized so multiple threads won't mix their frames together.
+	 * @param dataToSend The data to send
+	 * @throws IOException
+	 */
+	public void sendData(byte[] dataToSend) throws IOException {
+		boolean data = FlowControl.isDataFrame(dataToSend[0]);
+		if (outbound != null) {
+			enqueue(frame(dataToSend), data);
+			return;
+		}
+
+		synchronized (this) {
+			if (!queued() && dataToSend.length + 4 <= buffer.capacity()) {
+				buffer.clear();
+				buffer.putInt(dataToSend.length);
+				buffer.put(dataToSend);
+				buffer.flip();
+				writeOrQueueRest();
+				return;
+			}
+
+			(data ? pending : pendingControl).add(frame(dataToSend));
+			requestWrite();
+		}
+	}
+
+	// True if anything is waiting for the selector thread. Caller holds the lock
+	private boolean queued() {
+		return writing != null || !pending.isEmpty() || !pendingControl.isEmpty();
+	}
+
+	// Copies the data into a new length-prefixed frame
+	private static ByteBuffer frame(byte[] data) {
+		ByteBuffer frame = ByteBuffer.allocate(data.length + 4);
+		frame.putInt(data.length);
+		frame.put(data);
+		frame.flip();
+		return frame;
+	}
+
+	// Writes the reusable buffer and queues whatever the socket would not take. Caller holds the lock
+	private void writeOrQueueRest() throws IOException {
+		channel.write(buffer);
+		if (!buffer.hasRemaining()) {
+			return;
+		}
+
+		writing = ByteBuffer.allocate(buffer.remaining());
+		writing.put(buffer);
+		writing.flip();
+		requestWrite();
+	}
+
+	/***
+	 * sendEvent writes the length of the event then the event itself. When nothing is queued the
+	 * event is encoded into the reusable buffer and written from there.
+	 * @param event The event to send
+	 * @throws IOException
+	 */
+	public void sendEvent(Event event) throws IOException {
+		int frameLength = event.getEncodedSize() + 4;
+		boolean data = FlowControl.isDataFrame(event.getType());
+		if (outbound != null) {
+			ByteBuffer frame = ByteBuffer.allocate(frameLength);
+			frame.putInt(frameLength - 4);
+			event.encode(frame);
+			frame.flip();
+			enqueue(frame, data);
+			return;
+		}
+
+		synchronized (this) {
+			if (!queued() && frameLength <= buffer.capacity()) {
+				buffer.clear();
+				buffer.putInt(frameLength - 4);
+				event.encode(buffer);
+				buffer.flip();
+				writeOrQueueRest();
+				return;
+			}
+
+			ByteBuffer frame = ByteBuffer.allocate(frameLength);
+			frame.putInt(frameLength - 4);
+			event.encode(frame);
+			frame.flip();
+			(data ? pending : pendingControl).add(frame);
+			requestWrite();
+		}
+	}
+
+	// Adds a frame to the asynchronous queue
+	private void enqueue(ByteBuffer frame, boolean data) {
+		(data ? outbound : outboundControl).add(frame);
+		// Only the first frame after the queue went idle needs to wake the selector
+		if (writeRequested.compareAndSet(false, true)) {
+			requestWrite();
+		}
+	}
+
+	// Asks the selector thread for a write event (if the channel has been registered yet)
+	private void requestWrite() {
+		SelectionKey current = key;
+		if (current != null) {
+			current.interestOpsOr(SelectionKey.OP_WRITE);
+			selector.wakeup();
+		}
+	}
+
+	/***
+	 * Called by the selector thread when the channel can be written to. Writes as much of the
+	 * queues as the socket will take, control frames first, and stops asking for write events once
+	 * they are empty.
+	 * @throws IOException
+	 */
+	public void handleWrite() throws IOException {
+		if (outbound != null) {
+			handleGatheringWrite();
+			return;
+		}
+
+		synchronized (this) {
+			while (true) {
+				if (writing == null) {
+					writing = pendingControl.poll();
+					if (writing == null) {
+						writing = pending.poll();
+					}
+					if (writing == null) {
+						break;
+					}
+				}
+				channel.write(writing);
+				if (writing.hasRemaining()) {
+					return;
+				}
+				writing = null;
+			}
+			key.interestOpsAnd(~SelectionKey.OP_WRITE);
+		}
+	}
+
+	// Only ever called from the selector thread, so the gather array needs no locking
+	private void handleGatheringWrite() throws IOException {
+		while (true) {
+			if (gatherStart == gatherEnd) {
+				gatherStart = 0;
+				gatherEnd = 0;
+				ByteBuffer frame;
+				while (gatherEnd < gather.length && (frame = outboundControl.poll()) != null) {
+					gather[gatherEnd++] = frame;
+				}
+				while (gatherEnd < gather.length && (frame = outbound.poll()) != null) {
+					gather[gatherEnd++] = frame;
+				}
+
+				if (gatherEnd == 0) {
+					// The write interest is dropped before the flag is cleared so that a sender who sets the
+					// flag afterwards is guaranteed to turn it back on
+					key.interestOpsAnd(~SelectionKey.OP_WRITE);
+					writeRequested.set(false);
+					if (!(outbound.isEmpty() && outboundControl.isEmpty()) && writeRequested.compareAndSet(false, true)) {
+						key.interestOpsOr(SelectionKey.OP_WRITE);
+						continue;
+					}
+					return;
+				}
+			}
+
+			channel.write(gather, gatherStart, gatherEnd - gatherStart);
+			while (gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) {
+				gather[gatherStart++] = null;
+			}
+
+			if (gatherStart < gatherEnd) {
+				// The socket is full. Wait for the next write event
+				return;
+			}
+		}
+	}
+}
@@ -1,14 +1,34 @@
 package cs455.overlay.transport;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 
 import cs455.overlay.node.Node;
+import cs455.overlay.util.OverlayConfiguration;
+import cs455.overlay.wireformats.Event;
 
 /***
  * The data structure that represents the TCPConnection. It holds the receiver thread and 
  * sender. The nodes must invoke it's methods to send or receive data.
  * 
+ * When the transport=nio startup option is given the connection is instead backed by a
+ * non-blocking channel that is serviced by one of the selector threads in the TCPSelectorPool.
+ * Either way the owner's onEvent method is called with every Event received.
+ * 
+ * With the outbound=async startup option sends are queued and written by a separate writer
+ * (a writer thread, or the selector thread for nio) that coalesces the queued frames.
+ * 
+ * Every connection has a FlowControl for the data frames sent on it (see getFlowControl). The
+ * readers return the credits, the nodes take them before sending.
+ * 
+ * An owner must never block while a selector thread is handing it an event, since that would stop
+ * every connection on the selector. Instead it can pause reading from the connection (see
+ * pauseReading) and resume once it can take more.
  * 
  * @author acarbona
  *
@@ -17,6 +37,17 @@ public class TCPConnection {
 	private TCPReceiverThread receive;
 	private TCPSender sender;
 	private Socket socket;
+	private FlowControl flow = new FlowControl(this);
+	
+	// The connection whose reader is running on this thread, so the owner can tell where an event came from
+	private static ThreadLocal<TCPConnection> delivering = new ThreadLocal<TCPConnection>();
+	
+	// Only used by the non-blocking transport
+	private SocketChannel channel;
+	private TCPChannelReader channelReader;
+	private TCPChannelSender channelSender;
+	private TCPSelectorThread selectorThread;
+	private volatile SelectionKey key;
 	
 	/***
 	 * The constructor sets up the connection with the other node by creating the
@@ -28,8 +59,90 @@ public class TCPConnection {
 	 */
 	public TCPConnection(Socket socket, Node owner) throws IOException {
 		this.socket = socket;
-		receive = new TCPReceiverThread(socket, owner);
-		sender = new TCPSender(socket);
+		// The credit returns are small frames that the other end is waiting on
+		socket.setTcpNoDelay(true);
+		receive = new TCPReceiverThread(socket, owner, this);
+		sender = new TCPSender(socket, useAsynchronousSend());
+	}
+	
+	/***
+	 * The constructor for the non-blocking transport. The channel is switched to non-blocking
+	 * mode and registered with a selector thread so queued frames can be written. Reading
+	 * starts once readData is called.
+	 *
+	 * @param channel the connected channel
+	 * @param owner the node that owns it (required for the reader to call onEvent)
+	 * @throws IOException
+	 */
+	public TCPConnection(SocketChannel channel, Node owner) throws IOException {
+		this.channel = channel;
+		socket = channel.socket();
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channelReader = new TCPChannelReader(channel, owner, flow);
+		channelSender = new TCPChannelSender(channel, useAsynchronousSend());
+		selectorThread = TCPSelectorPool.getInstance().next();
+		selectorThread.register(this, 0);
+	}
+	
+	/***
+	 * Checks the startup options to see if the non-blocking transport should be used
+	 * @return true if transport=nio was given
+	 */
+	public static boolean useNonBlocking() {
+		return OverlayConfiguration.getInstance().getString("transport", "blocking").equalsIgnoreCase("nio");
+	}
+	
+	/***
+	 * Checks the startup options to see if sends should be queued for a writer
+	 * @return true if outbound=async was given
+	 */
+	public static boolean useAsynchronousSend() {
+		return OverlayConfiguration.getInstance().getString("outbound", "sync").equalsIgnoreCase("async");
+	}
+	
+	/***
+	 * Opens a connection to the given address using the transport chosen at startup.
+	 * The connection does not start reading until readData is called.
+	 *
+	 * @param address the address to connect to
+	 * @param port the port to connect to
+	 * @param owner the node that owns the connection
+	 * @return the new connection
+	 * @throws IOException
+	 */
+	public static TCPConnection connect(InetAddress address, int port, Node owner) throws IOException {
+		return connect(address, port, owner, 0);
+	}
+	
+	/***
+	 * The same as connect above, but gives up if the connection can't be made in time
+	 *
+	 * @param timeout the most milliseconds to wait for the connection (0 waits forever)
+	 * @throws SocketTimeoutException if the timeout expires first
+	 */
+	public static TCPConnection connect(InetAddress address, int port, Node owner, int timeout) throws IOException {
+		InetSocketAddress remote = new InetSocketAddress(address, port);
+		if (useNonBlocking()) {
+			// The channel connects in blocking mode, the connection switches it over afterwards
+			SocketChannel channel = SocketChannel.open();
+			try {
+				channel.socket().connect(remote, timeout);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			return new TCPConnection(channel, owner);
+		} else {
+			Socket socket = new Socket();
+			try {
+				socket.connect(remote, timeout);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			return new TCPConnection(socket, owner);
+		}
 	}
 	
 	/***
@@ -42,20 +155,72 @@ public class TCPConnection {
 	}
 	
 	/***
-	 * Starts the receiver thread
+	 * Starts the receiver thread (or registers the channel with a selector thread)
 	 */
 	public void readData() {
-		receive.start();
+		if (channel != null) {
+			selectorThread.register(this, SelectionKey.OP_READ);
+		} else {
+			receive.start();
+		}
 	}
 	
 	/***
-	 * Calls the sender sendData method with the data parameter. This is synchronized to ensure
-	 * that only one node can attempt to send data at once.
+	 * Calls the sender sendData method with the data parameter. The senders make sure that
+	 * only one thread can write a frame at once (or queue the frame in asynchronous mode).
 	 * @param data the byte array to send
 	 * @throws IOException
 	 */
-	public synchronized void sendData(byte[] data) throws IOException {
-		sender.sendData(data);
+	public void sendData(byte[] data) throws IOException {
+		if (channel != null) {
+			channelSender.sendData(data);
+		} else {
+			sender.sendData(data);
+		}
+	}
+	
+	/***
+	 * Sends an event. The event is encoded straight into the sender's buffer, so this
+	 * avoids building the byte array that getBytes would.
+	 * @param event the event to send
+	 * @throws IOException
+	 */
+	public void sendEvent(Event event) throws IOException {
+		if (channel != null) {
+			channelSender.sendEvent(event);
+		} else {
+			sender.sendEvent(event);
+		}
+	}
+	
+	/***
+	 * Sends a control event without ever blocking the calling thread, even when the socket is full.
+	 * The non-blocking transport never blocks on a send anyway, the blocking one hands the event to
+	 * a writer (see TCPSender.sendControl). The event must not be changed after it is handed over.
+	 * @param event the event to send
+	 * @throws IOException
+	 */
+	public void sendControl(Event event) throws IOException {
+		if (channel != null) {
+			channelSender.sendEvent(event);
+		} else {
+			sender.sendControl(event);
+		}
+	}
+	
+	/***
+	 * @return the flow control of the data frames sent on this connection
+	 */
+	public FlowControl getFlowControl() {
+		return flow;
+	}
+	
+	/***
+	 * Gets the address and port of the other end of the connection
+	 * @return the remote address
+	 */
+	public InetSocketAddress getRemoteAddress() {
+		return (InetSocketAddress) socket.getRemoteSocketAddress();
 	}
 	
 	/***
@@ -65,4 +230,108 @@ public class TCPConnection {
 	public int getPort() {
 		return socket.getPort();
 	}
+	
+	// Getters for the local end of the connection
+	public byte[] getLocalAddress() {
+		return socket.getLocalAddress().getAddress();
+	}
+	
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+	
+	// The methods below are used by the selector thread for the non-blocking transport
+	SocketChannel getChannel() {
+		return channel;
+	}
+	
+	void registered(SelectionKey key, TCPSelectorThread selector) {
+		this.key = key;
+		channelSender.registered(key, selector);
+	}
+	
+	/***
+	 * @return true if reading can be paused, which is only the case for the non-blocking transport. A
+	 * receiver thread of the blocking transport serves just its own connection, so it can simply block
+	 */
+	public boolean canPauseReading() {
+		return channel != null;
+	}
+	
+	/***
+	 * Stops the selector thread from reading the connection until resumeReading is called. Frames
+	 * already read are still handed to the owner.
+	 */
+	public void pauseReading() {
+		SelectionKey current = key;
+		if (current != null && current.isValid()) {
+			current.interestOpsAnd(~SelectionKey.OP_READ);
+		}
+	}
+	
+	/***
+	 * Starts reading the connection again after pauseReading
+	 */
+	public void resumeReading() {
+		SelectionKey current = key;
+		if (current != null && current.isValid()) {
+			current.interestOpsOr(SelectionKey.OP_READ);
+			selectorThread.wakeup();
+		}
+	}
+	
+	void handleRead() {
+		delivering.set(this);
+		try {
+			if (!channelReader.read()) {
+				System.out.println("Connection closed by " + socket.getRemoteSocketAddress());
+				close();
+			}
+		} catch (IOException ioe) {
+			System.out.println("IO error in reciever: " + ioe.getMessage());
+			ioe.printStackTrace();
+			close();
+		} finally {
+			delivering.remove();
+		}
+	}
+	
+	// Called by a receiver thread before it reads anything
+	static void delivering(TCPConnection connection) {
+		delivering.set(connection);
+	}
+	
+	/***
+	 * Lets the owner's onEvent method find out which connection an event came in on
+	 * @return the connection whose reader is running onEvent on this thread, or null on any other thread
+	 */
+	public static TCPConnection getDeliveringConnection() {
+		return delivering.get();
+	}
+	
+	void handleWrite() {
+		try {
+			channelSender.handleWrite();
+		} catch (IOException ioe) {
+			System.out.println("IO error in sender: " + ioe.getMessage());
+			ioe.printStackTrace();
+			close();
+		}
+	}
+	
+	/***
+	 * Closes the connection. A reader that has been started stops once it sees the socket closed.
+	 */
+	public void close() {
+		flow.closed();
+		try {
+			if (channel != null) {
+				channel.close();
+			} else {
+				socket.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Error closing connection: " + e.getMessage());
+		}
+	}
 }
@@ -1,7 +1,6 @@
 package cs455.overlay.transport;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Arrays;
 
 /***
  * The TCPConnectionsCache holds a data structure that contains all the connections
@@ -11,51 +10,165 @@ import java.util.Set;
  * 	- Add
  * 	- Remove
  * 	- Size
+ *
+ * Lookups happen for every message sent or relayed, while changes only happen when nodes join or
+ * leave. So the connections are kept in an immutable table that is copied on every change and
+ * published through a volatile field. Readers never lock or allocate: ids below DENSE_IDS index an
+ * array directly, other ids are found in an open addressed map of primitive ints.
+ *
  * @author acarbona
  *
  */
 
 public class TCPConnectionsCache {
+	// Ids from 0 to DENSE_IDS - 1 (all the ids the registry hands out by default) are stored in an array
+	private static final int DENSE_IDS = 128;
+	private static final int EMPTY = Integer.MIN_VALUE;
+
+	private volatile Table table;
 
-	HashMap<Integer, TCPConnection> dataset;
-	
 	public TCPConnectionsCache() {
-		dataset = new HashMap<Integer, TCPConnection>();
+		table = new Table(new TCPConnection[DENSE_IDS], new int[0], new TCPConnection[0]);
 	}
-	
-	public void add(int nodeID, TCPConnection connection) {
-		dataset.put(new Integer(nodeID), connection);
+
+	public synchronized void add(int nodeID, TCPConnection connection) {
+		Table current = table;
+		int[] ids = current.ids;
+		if (current.get(nodeID) == null) {
+			ids = new int[current.ids.length + 1];
+			System.arraycopy(current.ids, 0, ids, 0, current.ids.length);
+			ids[ids.length - 1] = nodeID;
+		}
+		table = current.with(ids, nodeID, connection);
 	}
-	
-	public void remove(int nodeID){
-		dataset.remove(nodeID);
+
+	public synchronized void remove(int nodeID){
+		Table current = table;
+		if (current.get(nodeID) == null) {
+			return;
+		}
+
+		int[] ids = new int[current.ids.length - 1];
+		int next = 0;
+		for (int id : current.ids) {
+			if (id != nodeID) {
+				ids[next++] = id;
+			}
+		}
+		table = current.with(ids, nodeID, null);
 	}
-	
+
 	public TCPConnection getConnection(int nodeID) {
-		return dataset.get(new Integer(nodeID));
+		return table.get(nodeID);
 	}
-	
+
 	public byte[] getIPAddress(int nodeID) {
-		return dataset.get(nodeID).getConnectedAddress();
+		return table.get(nodeID).getConnectedAddress();
 	}
-	
+
 	public int getPort(int nodeID) {
-		return dataset.get(nodeID).getPort();
+		return table.get(nodeID).getPort();
 	}
-	
+
 	public boolean containsValue(TCPConnection connection) {
-		return dataset.containsValue(connection);
+		Table current = table;
+		for (int id : current.ids) {
+			if (current.get(id) == connection) {
+				return true;
+			}
+		}
+		return false;
 	}
-	
+
 	public boolean containsKey(int id) {
-		return dataset.containsKey(new Integer(id));
+		return table.get(id) != null;
 	}
-	
+
 	public int size() {
-		return dataset.size();
+		return table.ids.length;
 	}
-	
-	public Set<Integer> getKeys() {
-		return dataset.keySet();
+
+	/***
+	 * Returns the ids in the cache (in the order they were added). The array is shared with the
+	 * cache, so it must not be modified, but it never changes: later adds and removes make a new one.
+	 * @return the node ids
+	 */
+	public int[] getIDs() {
+		return table.ids;
+	}
+
+	/***
+	 * One version of the cache. It is never changed once it has been published.
+	 */
+	private static class Table {
+		private final TCPConnection[] dense;
+		private final int[] sparseKeys;
+		private final TCPConnection[] sparseValues;
+		private final int[] ids;
+
+		private Table(TCPConnection[] dense, int[] sparseKeys, TCPConnection[] sparseValues) {
+			this(dense, sparseKeys, sparseValues, new int[0]);
+		}
+
+		private Table(TCPConnection[] dense, int[] sparseKeys, TCPConnection[] sparseValues, int[] ids) {
+			this.dense = dense;
+			this.sparseKeys = sparseKeys;
+			this.sparseValues = sparseValues;
+			this.ids = ids;
+		}
+
+		private TCPConnection get(int nodeID) {
+			if (nodeID >= 0 && nodeID < DENSE_IDS) {
+				return dense[nodeID];
+			}
+			if (sparseKeys.length == 0) {
+				return null;
+			}
+
+			int mask = sparseKeys.length - 1;
+			for (int slot = hash(nodeID) & mask; sparseKeys[slot] != EMPTY; slot = (slot + 1) & mask) {
+				if (sparseKeys[slot] == nodeID) {
+					return sparseValues[slot];
+				}
+			}
+			return null;
+		}
+
+		// Builds the next version with the connection for nodeID replaced (or removed if it is null)
+		private Table with(int[] ids, int nodeID, TCPConnection connection) {
+			if (nodeID >= 0 && nodeID < DENSE_IDS) {
+				TCPConnection[] newDense = dense.clone();
+				newDense[nodeID] = connection;
+				return new Table(newDense, sparseKeys, sparseValues, ids);
+			}
+
+			// The sparse map is rebuilt from the ids, sized to stay at most half full
+			int capacity = 1;
+			while (capacity < ids.length * 2) {
+				capacity <<= 1;
+			}
+			int[] keys = new int[capacity];
+			TCPConnection[] values = new TCPConnection[capacity];
+			Arrays.fill(keys, EMPTY);
+
+			int mask = capacity - 1;
+			for (int id : ids) {
+				if (id >= 0 && id < DENSE_IDS) {
+					continue;
+				}
+				int slot = hash(id) & mask;
+				while (keys[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = id;
+				values[slot] = id == nodeID ? connection : get(id);
+			}
+			return new Table(dense, keys, values, ids);
+		}
+
+		private static int hash(int id) {
+			int h = id * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
 	}
 }
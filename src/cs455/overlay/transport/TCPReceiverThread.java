@@ -4,15 +4,27 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 
 import cs455.overlay.node.Node;
+import cs455.overlay.node.RelayingNode;
 import cs455.overlay.wireformats.EventFactory;
+import cs455.overlay.wireformats.OverlayNodeGrantsCredits;
+import cs455.overlay.wireformats.Protocol;
 
 /***
  * The receiver thread waits for data to be send to the particular connection.
  * It will block until data is received and read fully. Then it will send the data
  * in an event to the owning node using the onEvent method
  * 
+ * The frames are read into arrays from the BufferPool. The array is given back to the
+ * pool as soon as the owner's onEvent method returns (the events copy out what they need).
+ * 
+ * If the owner is a RelayingNode, data frames are offered to it before anything is decoded.
+ * Credit returns are handed to the connection's FlowControl instead of the owner, and every data
+ * frame the owner has dealt with is reported to it so the credit can go back (unless the owner
+ * took the credit to return it later).
+ * 
  * @author acarbona
  *
  */
@@ -20,6 +32,10 @@ public class TCPReceiverThread extends Thread {
 	private Socket socket;
 	private DataInputStream din;
 	private Node owner;
+	private RelayingNode relayingOwner;
+	private BufferPool pool;
+	private FlowControl flow;
+	private TCPConnection connection;
 	
 	/***
 	 * The constructor of the receiver thread requires the owner to be of type Node.
@@ -27,12 +43,19 @@ public class TCPReceiverThread extends Thread {
 	 * created it is a Registry or Messaging node. 
 	 * @param socket the socket to connect to
 	 * @param owner the node that created the connection that holds this thread
+	 * @param connection the connection the thread reads for
 	 * @throws IOException
 	 */
-	public TCPReceiverThread(Socket socket, Node owner) throws IOException {
+	public TCPReceiverThread(Socket socket, Node owner, TCPConnection connection) throws IOException {
 		this.socket = socket;
 		din = new DataInputStream(socket.getInputStream());
 		this.owner = owner;
+		if (owner instanceof RelayingNode) {
+			relayingOwner = (RelayingNode) owner;
+		}
+		pool = BufferPool.getInstance();
+		this.connection = connection;
+		flow = connection.getFlowControl();
 	}
 	
 	/***
@@ -41,15 +64,34 @@ public class TCPReceiverThread extends Thread {
 	 * that data to send to it's owner's onEvent method
 	 */
 	public void run() {
+		TCPConnection.delivering(connection);
 		int dataLength;
 		while (socket != null) {
 			try {
 //				System.out.println("Blocked attempting to read data");
 				dataLength = din.readInt();
 //				System.out.println("Able to read data");
-				byte[] data = new byte[dataLength];
-				din.readFully(data, 0, dataLength);
-				owner.onEvent(EventFactory.getInstance().createEvent(data));
+				byte[] data = pool.acquire(dataLength);
+				try {
+					din.readFully(data, 0, dataLength);
+					if (data[0] == Protocol.OVERLAY_NODE_GRANTS_CREDITS) {
+						flow.granted(new OverlayNodeGrantsCredits(ByteBuffer.wrap(data, 0, dataLength)).getCount());
+						continue;
+					}
+					boolean dataFrame = FlowControl.isDataFrame(data[0]);
+					if (dataFrame) {
+						flow.handing();
+					}
+					if (relayingOwner == null || data[0] != Protocol.OVERLAY_NODE_SENDS_DATA
+							|| !relayingOwner.onDataFrame(ByteBuffer.wrap(data, 0, dataLength))) {
+						owner.onEvent(EventFactory.getInstance().createEvent(data, dataLength));
+					}
+					if (dataFrame) {
+						flow.handed();
+					}
+				} finally {
+					pool.release(data);
+				}
 			} catch (SocketException se) {
 				System.out.println("Socket error in reciever thread: " + se.getMessage());
 				se.printStackTrace();
@@ -60,5 +102,7 @@ public class TCPReceiverThread extends Thread {
 				break;
 			}
 		}
+		// Nothing more can arrive, so let go of the connection
+		connection.close();
 	}
 }
@@ -0,0 +1,51 @@
+package cs455.overlay.transport;
+
+import java.io.IOException;
+
+import cs455.overlay.util.OverlayConfiguration;
+
+/***
+ * A singleton holding the selector threads used by the non-blocking transport. The number
+ * of threads is set with the selectors startup option (default 1). Connections are spread over
+ * the threads in round robin order.
+ *
+ * @author acarbona
+ *
+ */
+public class TCPSelectorPool {
+	// START: This portion makes it singleton (there will only be one instance per machine)
+	private static TCPSelectorPool instance = null;
+
+	public static synchronized TCPSelectorPool getInstance() throws IOException {
+		if (instance == null) {
+			instance = new TCPSelectorPool(OverlayConfiguration.getInstance().getInt("selectors", 1));
+		}
+		return instance;
+	}
+	// END
+
+	private TCPSelectorThread[] threads;
+	private int next = 0;
+
+	private TCPSelectorPool(int numThreads) throws IOException {
+		threads = new TCPSelectorThread[Math.max(1, numThreads)];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new TCPSelectorThread("selector-" + i);
+			threads[i].start();
+		}
+	}
+
+	/***
+	 * Gets the selector thread that the next channel should be registered with
+	 * @return a selector thread
+	 */
+	public synchronized TCPSelectorThread next() {
+		TCPSelectorThread thread = threads[next];
+		next = (next + 1) % threads.length;
+		return thread;
+	}
+
+	public int size() {
+		return threads.length;
+	}
+}
@@ -0,0 +1,142 @@
+package cs455.overlay.transport;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/***
+ * An event loop for the non-blocking transport. Each selector thread owns a Selector and
+ * services the accept, read and write readiness of every channel registered with it.
+ * This replaces the receiver thread per connection (and the blocking accept in the server thread)
+ * so that a small number of threads can serve hundreds of connections.
+ *
+ * Channels can only be registered with a selector from the thread that is selecting on it, so
+ * other threads hand their channels over through a queue and wake the selector up.
+ *
+ * @author acarbona
+ *
+ */
+public class TCPSelectorThread extends Thread {
+	private Selector selector;
+	private ConcurrentLinkedQueue<Registration> pending;
+
+	/***
+	 * Holds a channel waiting to be registered along with the object that will handle its events
+	 * (either a TCPConnection or a TCPServerThread)
+	 */
+	private static class Registration {
+		private SelectableChannel channel;
+		private int interestOps;
+		private Object handler;
+
+		private Registration(SelectableChannel channel, int interestOps, Object handler) {
+			this.channel = channel;
+			this.interestOps = interestOps;
+			this.handler = handler;
+		}
+	}
+
+	public TCPSelectorThread(String name) throws IOException {
+		super(name);
+		selector = Selector.open();
+		pending = new ConcurrentLinkedQueue<Registration>();
+		setDaemon(true);
+	}
+
+	/***
+	 * Registers a connection with the selector. If the connection is already registered the
+	 * interest operations are added to the ones it already has.
+	 * @param connection the connection to service
+	 * @param interestOps the events to service (0 if the connection only writes for now)
+	 */
+	public void register(TCPConnection connection, int interestOps) {
+		pending.add(new Registration(connection.getChannel(), interestOps, connection));
+		selector.wakeup();
+	}
+
+	/***
+	 * Registers a server for accept events
+	 * @param server the server thread whose channel should be serviced
+	 */
+	public void register(TCPServerThread server) {
+		pending.add(new Registration(server.getChannel(), SelectionKey.OP_ACCEPT, server));
+		selector.wakeup();
+	}
+
+	/***
+	 * Wakes the selector so that it will notice changes made to interest sets by other threads
+	 */
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	// Registers any channels that were handed to the selector since the last select
+	private void processRegistrations() {
+		Registration registration;
+		while ((registration = pending.poll()) != null) {
+			try {
+				SelectionKey key = registration.channel.keyFor(selector);
+				if (key != null) {
+					key.interestOpsOr(registration.interestOps);
+					continue;
+				}
+
+				key = registration.channel.register(selector, registration.interestOps, registration.handler);
+				if (registration.handler instanceof TCPConnection) {
+					((TCPConnection) registration.handler).registered(key, this);
+				}
+			} catch (ClosedChannelException e) {
+				System.out.println("Channel closed before it could be registered: " + e.getMessage());
+			}
+		}
+	}
+
+	/***
+	 * The run method selects forever, dispatching the ready events to the handler attached
+	 * to each key.
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				processRegistrations();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+
+						Object handler = key.attachment();
+						if (key.isAcceptable()) {
+							((TCPServerThread) handler).accept();
+						} else {
+							TCPConnection connection = (TCPConnection) handler;
+							if (key.isWritable()) {
+								connection.handleWrite();
+							}
+							if (key.isValid() && key.isReadable()) {
+								connection.handleRead();
+							}
+						}
+					} catch (CancelledKeyException e) {
+						// The channel was closed while its events were being handled
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("IO error in selector thread: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+}
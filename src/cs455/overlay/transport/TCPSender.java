@@ -2,22 +2,83 @@ package cs455.overlay.transport;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import cs455.overlay.util.ControlWakeup;
+import cs455.overlay.wireformats.Event;
 
 /***
  * The TCP Sender provides the send method needed to send information to the 
  * corresponding recevier thread. 
  * 
+ * In asynchronous mode (outbound=async) sendData only places the frame on a queue. A writer
+ * thread drains the queue and packs every waiting frame into one buffered write followed by a
+ * single flush, so a burst of small packets costs one system call instead of one each.
+ * Control frames (anything but OverlayNodeSendsData and OverlayNodeSendsDataBatch) have a queue of
+ * their own that the writer empties first, so they go out with the next write instead of behind
+ * every data frame already waiting. In synchronous mode a control frame waits for at most the one
+ * frame that holds the lock.
+ * 
+ * sendEvent encodes the event straight into the sender's buffer (the writer thread's buffer in
+ * asynchronous mode) instead of building a byte array for it first.
+ * 
+ * sendControl never blocks the caller. In asynchronous mode it queues the frame as a control frame.
+ * In synchronous mode it hands the frame to a control writer thread, started on the first call,
+ * which waits its turn for the lock instead of the caller.
+ * 
+ * If the writer thread fails to write, the frames waiting are dropped and every later send throws
+ * the IOException, so callers find out the connection is gone instead of queueing for ever.
+ * 
  * @author acarbona
  *
  */
 public class TCPSender {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_FRAMES_PER_FLUSH = 1024;
+	
 	private Socket socket;
 	private DataOutputStream dout;
+	private ByteBuffer buffer;
+	
+	// Holds byte arrays and events waiting for the writer in asynchronous mode
+	private LinkedBlockingQueue<Object> queue;
+	private ConcurrentLinkedQueue<Object> control;
+	private ControlWakeup wakeup;
+	
+	// Only used in synchronous mode, once sendControl has been called
+	private LinkedBlockingQueue<Event> controlOut;
+	private final Object controlLock = new Object();
+	
+	// Set when the writer thread can't write any more. Later sends throw it instead of queueing
+	private volatile IOException failure;
 	
 	public TCPSender(Socket socket) throws IOException {
+		this(socket, false);
+	}
+	
+	/***
+	 * Creates the sender and, if asynchronous, starts the writer thread that drains the queue.
+	 * @param socket the socket to write to
+	 * @param asynchronous true if sendData should queue the frame instead of writing it
+	 * @throws IOException
+	 */
+	public TCPSender(Socket socket, boolean asynchronous) throws IOException {
 		this.socket = socket;
 		dout = new DataOutputStream(socket.getOutputStream());
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		if (asynchronous) {
+			queue = new LinkedBlockingQueue<Object>();
+			control = new ConcurrentLinkedQueue<Object>();
+			wakeup = new ControlWakeup(queue, control);
+			Writer writer = new Writer();
+			writer.setDaemon(true);
+			writer.start();
+		}
 	}
 	
 	public Socket getSocket() {
@@ -27,14 +88,187 @@ public class TCPSender {
 	/***
 	 * sendData will write out the length of the data then the data to the output stream.
 	 * It is synchronized so multiple threads won't mix their data together if they are
-	 * context switched out
+	 * context switched out. In asynchronous mode the data is queued for the writer thread instead.
 	 * @param dataToSend The data to send
 	 * @throws IOException
 	 */
-	public synchronized void sendData(byte[] dataToSend) throws IOException {
-		int dataLength = dataToSend.length;
-		dout.writeInt(dataLength);
-		dout.write(dataToSend, 0, dataLength);
-		dout.flush();
+	public void sendData(byte[] dataToSend) throws IOException {
+		if (queue != null) {
+			enqueue(dataToSend, FlowControl.isDataFrame(dataToSend[0]));
+			return;
+		}
+		
+		synchronized (this) {
+			int dataLength = dataToSend.length;
+			dout.writeInt(dataLength);
+			dout.write(dataToSend, 0, dataLength);
+			dout.flush();
+		}
+	}
+	
+	/***
+	 * sendEvent writes the length of the event then the event itself, encoding it directly into
+	 * the sender's buffer. In asynchronous mode the event is queued and encoded by the writer thread,
+	 * so it must not be changed after it is handed over.
+	 * @param event The event to send
+	 * @throws IOException
+	 */
+	public void sendEvent(Event event) throws IOException {
+		if (queue != null) {
+			enqueue(event, FlowControl.isDataFrame(event.getType()));
+			return;
+		}
+		
+		synchronized (this) {
+			buffer.clear();
+			put(buffer, event, dout);
+			dout.write(buffer.array(), 0, buffer.position());
+			dout.flush();
+		}
+	}
+	
+	/***
+	 * Sends a control event without waiting for the socket (or the lock) to be free. The event must
+	 * not be changed after it is handed over.
+	 * @param event The event to send
+	 * @throws IOException if an earlier write on the connection failed
+	 */
+	public void sendControl(Event event) throws IOException {
+		if (queue != null) {
+			enqueue(event, false);
+			return;
+		}
+		
+		if (failure != null) {
+			throw new IOException("Connection failed: " + failure.getMessage(), failure);
+		}
+		synchronized (controlLock) {
+			if (controlOut == null) {
+				controlOut = new LinkedBlockingQueue<Event>();
+				ControlWriter writer = new ControlWriter();
+				writer.setDaemon(true);
+				writer.start();
+			}
+		}
+		controlOut.add(event);
+	}
+	
+	private void enqueue(Object frame, boolean data) throws IOException {
+		if (failure != null) {
+			throw new IOException("Connection failed: " + failure.getMessage(), failure);
+		}
+		if (data) {
+			queue.add(frame);
+		} else {
+			control.add(frame);
+			wakeup.controlAdded();
+		}
+	}
+	
+	/***
+	 * Adds one frame (a byte array or an event with its length in front) to the buffer. If the frame
+	 * does not fit then what is already in the buffer is written to the stream first, and a frame
+	 * bigger than the whole buffer is written straight to the stream.
+	 */
+	private static void put(ByteBuffer buffer, Object frame, OutputStream out) throws IOException {
+		byte[] data = null;
+		Event event = null;
+		int dataLength;
+		if (frame instanceof Event) {
+			event = (Event) frame;
+			dataLength = event.getEncodedSize();
+		} else {
+			data = (byte[]) frame;
+			dataLength = data.length;
+		}
+		
+		if (dataLength + 4 > buffer.remaining()) {
+			out.write(buffer.array(), 0, buffer.position());
+			buffer.clear();
+		}
+		
+		if (dataLength + 4 > buffer.capacity()) {
+			ByteBuffer large = ByteBuffer.allocate(dataLength + 4);
+			put(large, frame, out);
+			out.write(large.array(), 0, large.position());
+			return;
+		}
+		
+		buffer.putInt(dataLength);
+		if (event != null) {
+			event.encode(buffer);
+		} else {
+			buffer.put(data);
+		}
+	}
+	
+	/***
+	 * The writer thread for asynchronous mode. It blocks until there is at least one frame, then takes
+	 * everything else that is waiting (up to MAX_FRAMES_PER_FLUSH, control frames first) and packs it
+	 * all into the buffer, writing only when the buffer fills and once more at the end before flushing.
+	 */
+	private class Writer extends Thread {
+		public void run() {
+			ArrayList<Object> frames = new ArrayList<Object>(MAX_FRAMES_PER_FLUSH);
+			while (true) {
+				try {
+					Object first = wakeup.take();
+					Object frame;
+					while (frames.size() < MAX_FRAMES_PER_FLUSH && (frame = control.poll()) != null) {
+						frames.add(frame);
+					}
+					frames.add(first);
+					queue.drainTo(frames, MAX_FRAMES_PER_FLUSH - frames.size());
+					
+					buffer.clear();
+					for (int i = 0; i < frames.size(); i++) {
+						if (frames.get(i) != ControlWakeup.WAKE) {
+							put(buffer, frames.get(i), dout);
+						}
+					}
+					dout.write(buffer.array(), 0, buffer.position());
+					dout.flush();
+					frames.clear();
+				} catch (InterruptedException ie) {
+					break;
+				} catch (IOException ioe) {
+					System.out.println("IO error in sender thread: " + ioe.getMessage());
+					// Nothing more will be written, so stop taking frames and throw away what is waiting
+					failure = ioe;
+					queue.clear();
+					control.clear();
+					break;
+				}
+			}
+		}
+	}
+	
+	/***
+	 * Writes the frames handed to sendControl in synchronous mode. It takes the sender's lock like any
+	 * other sending thread and writes every control frame waiting in one go.
+	 */
+	private class ControlWriter extends Thread {
+		public void run() {
+			while (true) {
+				try {
+					Event event = controlOut.take();
+					synchronized (TCPSender.this) {
+						buffer.clear();
+						do {
+							put(buffer, event, dout);
+						} while ((event = controlOut.poll()) != null);
+						dout.write(buffer.array(), 0, buffer.position());
+						dout.flush();
+					}
+				} catch (InterruptedException ie) {
+					break;
+				} catch (IOException ioe) {
+					System.out.println("IO error in control writer: " + ioe.getMessage());
+					failure = ioe;
+					controlOut.clear();
+					break;
+				}
+			}
+		}
 	}
 }
@@ -2,10 +2,12 @@ package cs455.overlay.transport;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
 
 import cs455.overlay.node.Node;
 
@@ -15,18 +17,33 @@ import cs455.overlay.node.Node;
  * the owning node to pull connections from the server thread and store into their own
  * data structure. 
  * 
+ * The map is keyed by the remote address and port of each connection, which is unique even when
+ * many nodes run on one host. It is a concurrent map since the accepting thread adds to it while
+ * the owner claims connections from it.
+ * 
+ * With the non-blocking transport the server socket is a channel that is registered with
+ * a selector thread instead, so no thread is left blocked in accept.
+ * 
  * @author acarbona
  *
  */
 public class TCPServerThread extends Thread {
 	private ServerSocket sSocket;
+	private ServerSocketChannel sChannel;
 	private Node owner;
-	private HashMap<InetAddress, ArrayList<TCPConnection>> currentConnections;
+	private ConcurrentHashMap<InetSocketAddress, TCPConnection> currentConnections;
 	
 	public TCPServerThread(int portNum, Node owner) throws IOException {
-		sSocket = new ServerSocket(portNum);
+		if (TCPConnection.useNonBlocking()) {
+			sChannel = ServerSocketChannel.open();
+			sChannel.bind(new InetSocketAddress(portNum));
+			sChannel.configureBlocking(false);
+			sSocket = sChannel.socket();
+		} else {
+			sSocket = new ServerSocket(portNum);
+		}
 		this.owner = owner;
-		currentConnections = new HashMap<InetAddress, ArrayList<TCPConnection>>();
+		currentConnections = new ConcurrentHashMap<InetSocketAddress, TCPConnection>();
 	}
 	
 	// Getters for the information of the server socket
@@ -42,61 +59,73 @@ public class TCPServerThread extends Thread {
 		return sSocket.getInetAddress();
 	}
 	
-	// Returns the current connections list
-	public HashMap<InetAddress, ArrayList<TCPConnection>> getUnNamedConnections() {
-		return currentConnections;
+	/***
+	 * Takes an accepted connection out of the unregistered ones, found by the address and port of
+	 * its remote end. Only one caller can claim each connection.
+	 * @param addr the remote address
+	 * @param port the remote port
+	 * @return the connection, or null if no unregistered connection matches
+	 */
+	public TCPConnection claimConnection(InetAddress addr, int port) {
+		return currentConnections.remove(new InetSocketAddress(addr, port));
+	}
+
+	/***
+	 * Finds an unregistered connection without claiming it
+	 * @param addr the remote address
+	 * @param port the remote port
+	 * @return the connection, or null if no unregistered connection matches
+	 */
+	public TCPConnection findConnection(InetAddress addr, int port) {
+		return currentConnections.get(new InetSocketAddress(addr, port));
+	}
+
+	// Allows the using node to put a connection back with the unregistered ones if it is "deregistered"
+	public void releaseConnection(TCPConnection connection) {
+		currentConnections.put(connection.getRemoteAddress(), connection);
+	}
+
+	// Saves a newly accepted connection and starts it's receiver thread
+	private void addNewConnection(TCPConnection newConnectionToClient) {
+		currentConnections.put(newConnectionToClient.getRemoteAddress(), newConnectionToClient);
+		newConnectionToClient.readData();
 	}
 	
-	// Allows the using node to add a connection back to the list if it is "deregistered"
-	public void addConnection(TCPConnection connection, InetAddress addr) {
-		if (currentConnections.containsKey(addr)) {
-			ArrayList<TCPConnection> connections = currentConnections.get(addr);
-			if (!connections.contains(connection)) {
-				currentConnections.get(addr).add(connection);
-			}
-		} else {
-			ArrayList<TCPConnection> connections = new ArrayList<TCPConnection>();
-			connections.add(connection);
-			currentConnections.put(addr, connections);
-		}
+	ServerSocketChannel getChannel() {
+		return sChannel;
 	}
 	
-	// If the using node pulls a connection from current connections it will need to be removed
-	// from the data structure
-	public void removeConnection(InetAddress addr, TCPConnection connection) {
-		if (currentConnections.containsKey(addr)) {
-			ArrayList<TCPConnection> connections = currentConnections.get(addr);
-			if (connections.contains(connection)) {
-				currentConnections.get(addr).remove(connection);
-			} else {
-				System.out.println("Error: Connection does not exist");
-			}
-			
-			if (currentConnections.get(addr).size() == 0) {
-				currentConnections.remove(addr);
+	// Called by the selector thread when the server channel has connections waiting to be accepted
+	void accept() {
+		try {
+			SocketChannel newClient;
+			while ((newClient = sChannel.accept()) != null) {
+				addNewConnection(new TCPConnection(newClient, owner));
 			}
-		} else {
-			System.out.println("Error: Address not valid");
+		} catch (IOException e) {
+			System.out.println("Error in server thread. ");
+			e.printStackTrace();
 		}
 	}
 
 	// Waits to get an incoming connection. If it gets one it will save it and start it's receiver thread
 	@Override
 	public void run() {
+		if (sChannel != null) {
+			// The selector thread does the accepting for the non-blocking transport
+			try {
+				TCPSelectorPool.getInstance().next().register(this);
+			} catch (IOException e) {
+				System.out.println("Unable to start selector threads: " + e.getMessage());
+				e.printStackTrace();
+			}
+			return;
+		}
+		
 		while(true) {
 			try {
 				Socket newClient = sSocket.accept();
-				TCPConnection newConnectionToClient = new TCPConnection(newClient, owner);
-				
-				if (currentConnections.containsKey(newClient.getInetAddress())) {
-					currentConnections.get(newClient.getInetAddress()).add(newConnectionToClient);
-				} else {
-					ArrayList<TCPConnection> newlist = new ArrayList<TCPConnection>();
-					newlist.add(newConnectionToClient);
-					currentConnections.put(newClient.getInetAddress(), newlist);
-				}
-				
-				newConnectionToClient.readData();
+				addNewConnection(new TCPConnection(newClient, owner));
 			} catch (IOException e) {
 				System.out.println("Error in server thread. ");
 				e.printStackTrace();
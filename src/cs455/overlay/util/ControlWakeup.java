@@ -0,0 +1,68 @@
+package cs455.overlay.util;
+
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/***
+ * Wakes a consumer thread that sleeps on a blocking data queue when something is added to its
+ * separate control queue (used by the relay workers and the asynchronous TCPSender writer).
+ *
+ * The consumer only ever waits on the data queue, so a control item has to put WAKE on it. To keep
+ * that cheap the consumer sets a flag before it goes to sleep, and only the first control item
+ * added while the flag is set puts WAKE on the queue. A busy consumer finds the control items
+ * itself before its next data item, and the data queue keeps its room for data.
+ *
+ * @author acarbona
+ *
+ */
+public class ControlWakeup {
+	/***
+	 * Put on the data queue to wake the consumer. The consumer skips it
+	 */
+	public static final Object WAKE = new Object();
+
+	private BlockingQueue<Object> queue;
+	private Queue<?> control;
+	// Set while the consumer is (about to be) waiting on the empty data queue
+	private AtomicBoolean idle = new AtomicBoolean(false);
+
+	/***
+	 * @param queue the data queue the consumer waits on
+	 * @param control the control queue, which must be safe to check from any thread
+	 */
+	public ControlWakeup(BlockingQueue<Object> queue, Queue<?> control) {
+		this.queue = queue;
+		this.control = control;
+	}
+
+	/***
+	 * Called after an item has been added to the control queue. Never blocks: if a bounded data
+	 * queue is full the consumer is awake anyway.
+	 */
+	public void controlAdded() {
+		if (idle.compareAndSet(true, false)) {
+			queue.offer(WAKE);
+		}
+	}
+
+	/***
+	 * Takes the next item off the data queue, waiting while both queues are empty
+	 * @return the item, or WAKE if there was no data but the control queue has something
+	 * @throws InterruptedException
+	 */
+	public Object take() throws InterruptedException {
+		Object item = queue.poll();
+		if (item != null) {
+			return item;
+		}
+
+		// The flag is set before control is checked, so a control item added after the check finds it set
+		idle.set(true);
+		try {
+			return control.isEmpty() ? queue.take() : WAKE;
+		} finally {
+			idle.set(false);
+		}
+	}
+}
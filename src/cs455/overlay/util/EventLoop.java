@@ -0,0 +1,88 @@
+package cs455.overlay.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import cs455.overlay.node.Node;
+import cs455.overlay.wireformats.Event;
+
+/***
+ * Runs a node's state machine on a single thread. The receiver threads only decode their frames
+ * and post the events here, and anything else that touches the state (console commands, timers)
+ * is posted as a Runnable. Everything posted is handled one at a time in the order it arrived,
+ * so the handler needs no locks.
+ *
+ * The mailbox is a lock-free queue. The loop thread parks when it runs out of work and a poster
+ * only unparks it if it has said it is going to sleep.
+ *
+ * @author acarbona
+ *
+ */
+public class EventLoop extends Thread {
+	private Node handler;
+	private ConcurrentLinkedQueue<Object> mailbox;
+	private volatile boolean sleeping = false;
+
+	/***
+	 * @param name the name of the loop thread
+	 * @param handler the node whose onEvent method handles the posted events
+	 */
+	public EventLoop(String name, Node handler) {
+		super(name);
+		this.handler = handler;
+		mailbox = new ConcurrentLinkedQueue<Object>();
+		setDaemon(true);
+	}
+
+	/***
+	 * Posts an event to be handled on the loop thread
+	 * @param event the event
+	 */
+	public void post(Event event) {
+		enqueue(event);
+	}
+
+	/***
+	 * Posts a task to be run on the loop thread
+	 * @param task the task
+	 */
+	public void post(Runnable task) {
+		enqueue(task);
+	}
+
+	private void enqueue(Object item) {
+		mailbox.offer(item);
+		// The loop sets sleeping before its last look at the mailbox, so it either sees this item or gets woken
+		if (sleeping) {
+			LockSupport.unpark(this);
+		}
+	}
+
+	public void run() {
+		while (true) {
+			Object item = mailbox.poll();
+			if (item == null) {
+				sleeping = true;
+				item = mailbox.poll();
+				if (item == null) {
+					LockSupport.park(this);
+					sleeping = false;
+					continue;
+				}
+				sleeping = false;
+			}
+
+			try {
+				if (item instanceof Event) {
+					handler.onEvent((Event) item);
+				} else {
+					((Runnable) item).run();
+				}
+			} catch (RuntimeException e) {
+				// One bad event mustn't stop the loop
+				System.out.println("Error in event loop: " + e);
+				e.printStackTrace();
+			}
+		}
+	}
+}
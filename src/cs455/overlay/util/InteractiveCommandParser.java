@@ -56,7 +56,11 @@ public class InteractiveCommandParser {
 				}
 				break;
 			case "setup-overlay":
-				if (list_command.length != 2) {
+				if (list_command.length == 1) {
+					// The registry picks the number of entries
+					codes = new int[1];
+					codes[0] = 2;
+				} else if (list_command.length != 2) {
 					// Error message
 				} else {
 					codes = new int[2];
@@ -89,6 +93,19 @@ public class InteractiveCommandParser {
 					}
 				}
 				
+				break;
+			case "start-for":
+				if (list_command.length != 2) {
+					// Error
+				} else {
+					codes = new int[2];
+					codes[0] = 5;
+					try {
+						codes[1] = Integer.parseInt(list_command[1]);
+					} catch (NumberFormatException e) {
+						System.out.println(e.getMessage());
+					}
+				}
 				break;
 			default:
 				codes = new int[1];
@@ -0,0 +1,195 @@
+package cs455.overlay.util;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/***
+ * A high dynamic range histogram of latencies in microseconds. Values below 2^SUB_BUCKET_BITS get
+ * a bucket each. Above that every power of two is split into 2^SUB_BUCKET_BITS equal buckets, so
+ * a value is never off by more than about 3% whether it is a few microseconds or a few minutes.
+ *
+ * Recording is lock free so any number of receiving threads can share one histogram. Histograms
+ * from different nodes are merged with add, and only the buckets in use are marshalled.
+ *
+ * @author acarbona
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Values of 2^MAX_EXPONENT microseconds (about 12 days) or more go in an extra last bucket
+	private static final int MAX_EXPONENT = 40;
+	private static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + 1;
+
+	private AtomicLongArray counts;
+	private AtomicLong total;
+	private AtomicLong max;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(NUM_BUCKETS);
+		total = new AtomicLong(0);
+		max = new AtomicLong(0);
+	}
+
+	/***
+	 * The clock used for send timestamps. It is the wall clock (in microseconds since the epoch)
+	 * rather than nanoTime so that times taken on different machines can be compared, which means
+	 * the machines' clocks need to be in sync for the latencies to be meaningful.
+	 * @return the current time in microseconds
+	 */
+	public static long currentTimeMicros() {
+		return ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+	}
+
+	/***
+	 * Records one latency. Negative values (from clocks that are out of sync) count as zero.
+	 * @param micros the latency in microseconds
+	 */
+	public void record(long micros) {
+		long value = Math.max(0, micros);
+		counts.incrementAndGet(bucketOf(value));
+		total.incrementAndGet();
+		updateMax(value);
+	}
+
+	/***
+	 * Adds all the values recorded in another histogram to this one
+	 * @param other the histogram to merge in
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if (count != 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+		total.addAndGet(other.total.get());
+		updateMax(other.max.get());
+	}
+
+	private void updateMax(long value) {
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return total.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/***
+	 * Finds the value at the given percentile. The answer is the highest value that falls in the
+	 * bucket holding the percentile (but never more than the largest value recorded).
+	 * @param percentile between 0 and 100
+	 * @return the latency in microseconds, or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = total.get();
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	// The bucket a value is counted in
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent >= MAX_EXPONENT) {
+			return NUM_BUCKETS - 1;
+		}
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	// The highest value that is counted in a bucket
+	private static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		if (bucket == NUM_BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (subBucket + 1) * width - 1;
+	}
+
+	/***
+	 * @return the number of bytes encode will write
+	 */
+	public int getEncodedSize() {
+		int used = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			if (counts.get(i) != 0) {
+				used++;
+			}
+		}
+		return 8 + 2 + used * (2 + 8);
+	}
+
+	/***
+	 * Writes the maximum, the number of buckets in use, and then each bucket in use as its index and count.
+	 * Nothing should be recorded while the histogram is encoded.
+	 * @param buffer the buffer to write to
+	 */
+	public void encode(ByteBuffer buffer) {
+		buffer.putLong(max.get());
+		int usedPosition = buffer.position();
+		buffer.putShort((short) 0);
+
+		int used = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			long count = counts.get(i);
+			if (count != 0) {
+				buffer.putShort((short) i);
+				buffer.putLong(count);
+				used++;
+			}
+		}
+		buffer.putShort(usedPosition, (short) used);
+	}
+
+	/***
+	 * Reads a histogram written by encode, starting at the buffer's position
+	 * @param buffer the buffer holding the histogram
+	 * @return the histogram
+	 */
+	public static LatencyHistogram decode(ByteBuffer buffer) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.max.set(buffer.getLong());
+
+		int used = buffer.getShort() & 0xFFFF;
+		for (int i = 0; i < used; i++) {
+			int bucket = buffer.getShort() & 0xFFFF;
+			long count = buffer.getLong();
+			if (bucket < NUM_BUCKETS) {
+				histogram.counts.addAndGet(bucket, count);
+				histogram.total.addAndGet(count);
+			}
+		}
+		return histogram;
+	}
+}
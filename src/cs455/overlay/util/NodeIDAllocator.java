@@ -0,0 +1,179 @@
+package cs455.overlay.util;
+
+import java.util.HashSet;
+import java.util.Random;
+
+/***
+ * Hands out node ids for the registry without retrying on collisions.
+ *
+ * For id spaces of up to DENSE_BITS bits every free id is kept in an array. Allocating swaps a
+ * random free id to the end of the free part and shrinks it by one (a Fisher-Yates shuffle done one
+ * step at a time), and each id remembers its place in the array so releasing it is just as quick.
+ * Bigger spaces are far from full in any real overlay, so ids are drawn at random and checked
+ * against the set of allocated ids, which almost never takes more than one draw.
+ *
+ * In hash mode the id is derived from the node's ip and port instead, so a node that registers
+ * again from the same address gets the same id back. A taken id moves on to the next free one.
+ *
+ * @author acarbona
+ *
+ */
+public class NodeIDAllocator {
+	private static final int DENSE_BITS = 16;
+
+	private long idSpace;
+	private boolean hashed;
+	private Random generator;
+	private int allocated = 0;
+
+	// Dense spaces: free[0..numFree) are the free ids and slot[id] is where id sits in free
+	private int[] free;
+	private int[] slot;
+	private int numFree;
+
+	// Sparse spaces: the ids handed out
+	private HashSet<Integer> taken;
+
+	/***
+	 * @param idBits the number of bits in a node id
+	 * @param hashed true to derive the ids from the node addresses
+	 */
+	public NodeIDAllocator(int idBits, boolean hashed) {
+		this(idBits, hashed, new Random());
+	}
+
+	/***
+	 * The same as the constructor above, with the random number generator to use
+	 */
+	public NodeIDAllocator(int idBits, boolean hashed, Random generator) {
+		idSpace = 1L << idBits;
+		this.hashed = hashed;
+		this.generator = generator;
+
+		if (idBits <= DENSE_BITS) {
+			free = new int[(int) idSpace];
+			slot = new int[(int) idSpace];
+			for (int id = 0; id < free.length; id++) {
+				free[id] = id;
+				slot[id] = id;
+			}
+			numFree = free.length;
+		} else {
+			taken = new HashSet<Integer>();
+		}
+	}
+
+	/***
+	 * Allocates a random free id
+	 * @return the id, or -1 if every id is taken
+	 */
+	public synchronized int allocate() {
+		if (allocated >= idSpace) {
+			return -1;
+		}
+		if (free != null) {
+			return take(generator.nextInt(numFree));
+		}
+
+		int id = randomID();
+		while (taken.contains(id)) {
+			id = randomID();
+		}
+		taken.add(id);
+		allocated++;
+		return id;
+	}
+
+	/***
+	 * Allocates an id for a node. In hash mode it is worked out from the address (moving on to the
+	 * next id if it is taken), otherwise it is random.
+	 * @param ip the node's ip address
+	 * @param port the node's port
+	 * @return the id, or -1 if every id is taken
+	 */
+	public synchronized int allocate(byte[] ip, int port) {
+		if (!hashed) {
+			return allocate();
+		}
+		if (allocated >= idSpace) {
+			return -1;
+		}
+
+		int hash = port;
+		for (byte b : ip) {
+			hash = 31 * hash + b;
+		}
+		hash *= 0x9E3779B9;
+		long id = (hash ^ (hash >>> 16)) & (idSpace - 1);
+		while (!isFree((int) id)) {
+			id = (id + 1) & (idSpace - 1);
+		}
+
+		if (free != null) {
+			return take(slot[(int) id]);
+		}
+		taken.add((int) id);
+		allocated++;
+		return (int) id;
+	}
+
+	/***
+	 * Gives an id back so it can be handed out again. Releasing an id that isn't allocated does nothing.
+	 * @param id the id to release
+	 */
+	public synchronized void release(int id) {
+		if (id < 0 || id >= idSpace || isFree(id)) {
+			return;
+		}
+		allocated--;
+		if (free == null) {
+			taken.remove(id);
+			return;
+		}
+
+		// Swap the id with the taken id at the start of the taken part, which becomes free
+		int other = free[numFree];
+		int at = slot[id];
+		free[at] = other;
+		slot[other] = at;
+		free[numFree] = id;
+		slot[id] = numFree;
+		numFree++;
+	}
+
+	public synchronized int size() {
+		return allocated;
+	}
+
+	/***
+	 * @param id a node id
+	 * @return true if the id has been handed out and not released
+	 */
+	public synchronized boolean isAllocated(int id) {
+		return id >= 0 && id < idSpace && !isFree(id);
+	}
+
+	private boolean isFree(int id) {
+		if (free != null) {
+			return slot[id] < numFree;
+		}
+		return !taken.contains(id);
+	}
+
+	// Moves the free id at index to the end of the free part and marks it taken
+	private int take(int index) {
+		int id = free[index];
+		int last = free[numFree - 1];
+		free[index] = last;
+		slot[last] = index;
+		free[numFree - 1] = id;
+		slot[id] = numFree - 1;
+		numFree--;
+		allocated++;
+		return id;
+	}
+
+	private int randomID() {
+		return (int) (generator.nextLong() & (idSpace - 1));
+	}
+}
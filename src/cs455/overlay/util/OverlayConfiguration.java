@@ -0,0 +1,91 @@
+package cs455.overlay.util;
+
+import java.util.HashMap;
+
+/***
+ * Holds the optional startup settings for the registry and messaging nodes. The settings
+ * are given on the command line after the required arguments in the form key=value, for example:
+ *
+ * java cs455.overlay.node.Registry 5000 transport=nio selectors=2
+ *
+ * It is a singleton (like the EventFactory) so that the transport and node classes can read
+ * the settings without them being passed through every constructor.
+ *
+ * @author acarbona
+ *
+ */
+public class OverlayConfiguration {
+	// START: This portion makes it singleton (there will only be one instance per machine)
+	private static OverlayConfiguration instance = new OverlayConfiguration();
+
+	private OverlayConfiguration() {
+		options = new HashMap<String, String>();
+	}
+
+	public static OverlayConfiguration getInstance() {
+		return instance;
+	}
+	// END
+
+	private HashMap<String, String> options;
+
+	/***
+	 * Parses the key=value settings from the command line. Leading dashes are ignored so
+	 * --transport=nio and transport=nio are the same. A key without a value is treated as true.
+	 *
+	 * @param args - the command line arguments
+	 * @param offset - the index of the first optional argument
+	 */
+	public synchronized void parse(String[] args, int offset) {
+		for (int i = offset; i < args.length; i++) {
+			String arg = args[i];
+			while (arg.startsWith("-")) {
+				arg = arg.substring(1);
+			}
+
+			int split = arg.indexOf('=');
+			if (split == -1) {
+				options.put(arg.toLowerCase(), "true");
+			} else {
+				options.put(arg.substring(0, split).toLowerCase(), arg.substring(split + 1));
+			}
+		}
+	}
+
+	/***
+	 * Sets a single option. Used by code that starts nodes without a command line (such as the test harness).
+	 * @param key - the name of the option
+	 * @param value - the value of the option
+	 */
+	public synchronized void set(String key, String value) {
+		options.put(key.toLowerCase(), value);
+	}
+
+	public synchronized String getString(String key, String defaultValue) {
+		String value = options.get(key.toLowerCase());
+		return value == null ? defaultValue : value;
+	}
+
+	public int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for " + key + ": " + value + ". Using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		return value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") || value.equalsIgnoreCase("on") || value.equals("1");
+	}
+}
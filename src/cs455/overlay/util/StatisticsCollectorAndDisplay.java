@@ -4,6 +4,7 @@ import java.util.ArrayList;
 
 /***
  * Collects all the statistics into an array and then displays them with formatting.
+ * The latency histograms of the nodes are merged and shown as percentiles under the table.
  * 
  * @author acarbona
  *
@@ -12,9 +13,11 @@ public class StatisticsCollectorAndDisplay {
 	
 	private volatile ArrayList<StatisticsEntry> entries;
 	private volatile int size = 0;
+	private volatile LatencyHistogram latency;
 	
 	public StatisticsCollectorAndDisplay() {
 		entries = new ArrayList<StatisticsEntry>();
+		latency = new LatencyHistogram();
 	}
 	
 	public synchronized int getSize() {
@@ -26,6 +29,11 @@ public class StatisticsCollectorAndDisplay {
 		size++;
 	}
 	
+	public synchronized void addInformation(int nodeID, int sent, int relayed, int received, long sumSent, long sumReceived, LatencyHistogram nodeLatency) {
+		addInformation(nodeID, sent, relayed, received, sumSent, sumReceived);
+		latency.add(nodeLatency);
+	}
+	
 	public synchronized void printInformation() {
 		System.out.printf("\t%s\t%s\t%s\t\t%s\t\t%s\n", "Packets Sent", "Packets Received", "Packets Relayed", "Sum Values Sent", "Sum Values Received");
 		int i = 1;
@@ -37,10 +45,17 @@ public class StatisticsCollectorAndDisplay {
 				System.out.printf("Sum \t%d\t\t%d\t\t\t%d\t\t\t%d\t\t%d\n", e.getSent(), e.getReceived(), e.getRelayed(), e.getSumSent(), e.getSumReceived());
 			}
 		}
+		
+		if (latency.getCount() != 0) {
+			System.out.printf("Latency (us) over %d messages: p50 %d, p90 %d, p99 %d, p99.9 %d, max %d\n", latency.getCount(),
+					latency.getValueAtPercentile(50), latency.getValueAtPercentile(90), latency.getValueAtPercentile(99),
+					latency.getValueAtPercentile(99.9), latency.getMax());
+		}
 	}
 	
 	public void clear() {
 		entries = new ArrayList<StatisticsEntry>();
+		latency = new LatencyHistogram();
 		size = 0;
 	}
 	
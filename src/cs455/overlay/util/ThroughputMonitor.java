@@ -0,0 +1,88 @@
+package cs455.overlay.util;
+
+/***
+ * Adds up the throughput reports of the nodes into the rate of the whole overlay.
+ *
+ * The reports that arrive between two calls to printRate are added together, so every message
+ * is counted once no matter how the nodes' report intervals line up with the registry's. Along with
+ * the rate since the last print it shows the average over the last few prints, which smooths out
+ * reports that land on the wrong side of a print.
+ *
+ * It is only used from the registry's event loop, so it isn't synchronized.
+ *
+ * @author acarbona
+ *
+ */
+public class ThroughputMonitor {
+	private static final int ROLLING_PERIODS = 5;
+
+	private long sent, relayed, received;
+	private int reports;
+	private long periodStart;
+
+	// The last few periods, oldest overwritten first
+	private long[] periodNanos = new long[ROLLING_PERIODS];
+	private long[] periodSent = new long[ROLLING_PERIODS];
+	private long[] periodRelayed = new long[ROLLING_PERIODS];
+	private long[] periodReceived = new long[ROLLING_PERIODS];
+	private int periods = 0;
+
+	public ThroughputMonitor() {
+		reset();
+	}
+
+	/***
+	 * Adds a node's report
+	 * @param sent the messages the node sent since its last report
+	 * @param relayed the messages it relayed
+	 * @param received the messages it received
+	 */
+	public void add(long sent, long relayed, long received) {
+		this.sent += sent;
+		this.relayed += relayed;
+		this.received += received;
+		reports++;
+	}
+
+	/***
+	 * Prints the overlay's rate since the last print and over the last few prints, then starts
+	 * a new period
+	 */
+	public void printRate() {
+		long now = System.nanoTime();
+		int slot = periods % ROLLING_PERIODS;
+		periodNanos[slot] = now - periodStart;
+		periodSent[slot] = sent;
+		periodRelayed[slot] = relayed;
+		periodReceived[slot] = received;
+		periods++;
+
+		long rollingNanos = 0, rollingSent = 0, rollingRelayed = 0, rollingReceived = 0;
+		for (int i = 0; i < Math.min(periods, ROLLING_PERIODS); i++) {
+			rollingNanos += periodNanos[i];
+			rollingSent += periodSent[i];
+			rollingRelayed += periodRelayed[i];
+			rollingReceived += periodReceived[i];
+		}
+
+		double seconds = Math.max(1, periodNanos[slot]) / 1e9;
+		double rollingSeconds = Math.max(1, rollingNanos) / 1e9;
+		System.out.printf("Throughput (msgs/s): sent %.0f, relayed %.0f, received %.0f (%d reports). Last %d s: sent %.0f, relayed %.0f, received %.0f\n",
+				sent / seconds, relayed / seconds, received / seconds, reports, Math.round(rollingSeconds),
+				rollingSent / rollingSeconds, rollingRelayed / rollingSeconds, rollingReceived / rollingSeconds);
+
+		sent = relayed = received = 0;
+		reports = 0;
+		periodStart = now;
+	}
+
+	/***
+	 * Forgets everything, ready for the next task
+	 */
+	public void reset() {
+		sent = relayed = received = 0;
+		reports = 0;
+		periods = 0;
+		periodStart = System.nanoTime();
+	}
+}
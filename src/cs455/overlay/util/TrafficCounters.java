@@ -0,0 +1,192 @@
+package cs455.overlay.util;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/***
+ * Keeps the send, receive and relay counts (and the payload summations) of a messaging node
+ * without a shared lock.
+ *
+ * Every thread that records traffic gets its own cell, so the counting threads never write to
+ * the same memory. Each cell has a sequence number that is odd while its owner is updating it,
+ * which lets a reader get a consistent copy of the cell (a count and its summation always match)
+ * by reading it again if the sequence changed. Resetting doesn't touch the cells at all: the reader
+ * remembers what it last reported for each cell and only reports the difference.
+ *
+ * The task senders are new threads for every task, so a reset also drops the cells of threads
+ * that have ended once everything in them has been reported.
+ *
+ * @author acarbona
+ *
+ */
+public class TrafficCounters {
+
+	private CopyOnWriteArrayList<Cell> cells;
+	private ThreadLocal<Cell> localCell;
+
+	public TrafficCounters() {
+		cells = new CopyOnWriteArrayList<Cell>();
+		localCell = new ThreadLocal<Cell>() {
+			@Override
+			protected Cell initialValue() {
+				Cell cell = new Cell();
+				cells.add(cell);
+				return cell;
+			}
+		};
+	}
+
+	/***
+	 * Records a message this node started
+	 * @param payload the payload of the message
+	 */
+	public void recordSent(int payload) {
+		Cell cell = localCell.get();
+		cell.begin();
+		cell.sent++;
+		cell.sumSent += payload;
+		cell.end();
+	}
+
+	/***
+	 * Records a message that reached its destination at this node
+	 * @param payload the payload of the message
+	 */
+	public void recordReceived(int payload) {
+		Cell cell = localCell.get();
+		cell.begin();
+		cell.received++;
+		cell.sumReceived += payload;
+		cell.end();
+	}
+
+	/***
+	 * Records a message this node passed on
+	 */
+	public void recordRelayed() {
+		Cell cell = localCell.get();
+		cell.begin();
+		cell.relayed++;
+		cell.end();
+	}
+
+	/***
+	 * Records a number of messages this node passed on at once (in a batch)
+	 * @param count the number of messages
+	 */
+	public void recordRelayed(int count) {
+		if (count == 0) {
+			return;
+		}
+		Cell cell = localCell.get();
+		cell.begin();
+		cell.relayed += count;
+		cell.end();
+	}
+
+	/***
+	 * @return the traffic since the last reset, without resetting
+	 */
+	public synchronized Snapshot snapshot() {
+		return collect(false);
+	}
+
+	/***
+	 * Returns the traffic since the last reset and starts counting from zero again. Every message
+	 * is reported in exactly one snapshot, even if it is recorded while the snapshot is taken.
+	 * @return the traffic since the last reset
+	 */
+	public synchronized Snapshot snapshotAndReset() {
+		return collect(true);
+	}
+
+	// Only called by the (synchronized) readers, so the reported values need no further locking
+	private Snapshot collect(boolean reset) {
+		Snapshot total = new Snapshot();
+		long[] values = new long[5];
+		for (Cell cell : cells) {
+			// Checked before reading, so nothing can have been counted after the read
+			boolean ended = !cell.owner.isAlive();
+			cell.read(values);
+			total.sent += values[0] - cell.reported[0];
+			total.received += values[1] - cell.reported[1];
+			total.relayed += values[2] - cell.reported[2];
+			total.sumSent += values[3] - cell.reported[3];
+			total.sumReceived += values[4] - cell.reported[4];
+			if (reset) {
+				System.arraycopy(values, 0, cell.reported, 0, values.length);
+				if (ended) {
+					cells.remove(cell);
+				}
+			}
+		}
+		return total;
+	}
+
+	/***
+	 * The counters of one thread. Only the owning thread writes the counts, only the readers
+	 * touch reported.
+	 */
+	private static class Cell {
+		private Thread owner = Thread.currentThread();
+		private volatile int sequence = 0;
+		private long sent, received, relayed, sumSent, sumReceived = 0;
+		private long[] reported = new long[5];
+
+		private void begin() {
+			sequence++;
+			// The counts must not be written before the sequence turns odd
+			VarHandle.storeStoreFence();
+		}
+
+		private void end() {
+			sequence++;
+		}
+
+		private void read(long[] values) {
+			while (true) {
+				int before = sequence;
+				if ((before & 1) == 0) {
+					values[0] = sent;
+					values[1] = received;
+					values[2] = relayed;
+					values[3] = sumSent;
+					values[4] = sumReceived;
+					// The counts must be read before the sequence is checked again
+					VarHandle.loadLoadFence();
+					if (sequence == before) {
+						return;
+					}
+				}
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	/***
+	 * The traffic counted between two resets
+	 */
+	public static class Snapshot {
+		private long sent, received, relayed, sumSent, sumReceived = 0;
+
+		public long getSent() {
+			return sent;
+		}
+
+		public long getReceived() {
+			return received;
+		}
+
+		public long getRelayed() {
+			return relayed;
+		}
+
+		public long getSumSent() {
+			return sumSent;
+		}
+
+		public long getSumReceived() {
+			return sumReceived;
+		}
+	}
+}
@@ -1,10 +1,15 @@
 package cs455.overlay.wireformats;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /***
  * Provides and interface for all events. It requires the event to implement
  * getType() and getBytes() to be used by the onEvent method in the nodes
+ * 
+ * Every event can also encode itself straight into a ByteBuffer (and has a constructor that
+ * decodes from one in place). getEncodedSize gives the exact number of bytes encode will write,
+ * so the transport can reserve room for the frame in its own buffer without any copying.
  *  
  * @author acarbona
  *
@@ -18,4 +23,19 @@ public interface Event {
 	 * @return - a byte array
 	 */
 	public byte[] getBytes() throws IOException;
+	
+	/***
+	 * Gets the number of bytes that encode will write. This must be called AFTER one of the constructors.
+	 * 
+	 * @return - the encoded size of the event
+	 */
+	public int getEncodedSize();
+	
+	/***
+	 * Writes the event into the buffer starting at its current position. The buffer must have
+	 * at least getEncodedSize() bytes remaining.
+	 * 
+	 * @param buffer - the buffer to write into
+	 */
+	public void encode(ByteBuffer buffer);
 }
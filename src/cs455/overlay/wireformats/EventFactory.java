@@ -1,6 +1,8 @@
 package cs455.overlay.wireformats;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /***
  * A singleton class that generates events. This must be single because it would 
@@ -32,46 +34,101 @@ public class EventFactory {
 	 * @throws IOException
 	 */
 	public Event createEvent(byte[] data) throws IOException {
+		return createEvent(data, data.length);
+	}
+	
+	/***
+	 * Creates the event object from the first length bytes of data. The array may be longer
+	 * than the frame (for example when it comes from a buffer pool). Every event is self-delimiting
+	 * so the bytes after the frame are never read.
+	 * @param data - the array holding the frame
+	 * @param length - the length of the frame
+	 * @return The event object that represents the data
+	 * @throws IOException
+	 */
+	public Event createEvent(byte[] data, int length) throws IOException {
+		return createEvent(ByteBuffer.wrap(data, 0, length));
+	}
+	
+	/***
+	 * Creates the event object from the frame between the buffer's position and limit.
+	 * The event is decoded in place, nothing is copied out of the buffer first. When this
+	 * returns the position is at the end of the event.
+	 * @param buffer - the buffer holding the frame
+	 * @return The event object that represents the data
+	 * @throws IOException
+	 */
+	public Event createEvent(ByteBuffer buffer) throws IOException {
+		if (!buffer.hasRemaining()) {
+			throw new IOException("Empty frame received");
+		}
+		
 		Event e = null;
-		switch(data[0]) {
-			case Protocol.OVERLAY_NODE_SENDS_REGISTRATION:
-				e = new OverlayNodeSendsRegistration(data);
-				break;
-			case Protocol.REGISTRY_REPORTS_REGISTRATION_STATUS:
-				e = new RegistryReportsRegistrationStatus(data);
-				break;
-			case Protocol.REGISTRY_SENDS_NODE_MANIFEST:
-				e = new RegistrySendsNodeManifest(data);
-				break;
-			case Protocol.NODE_REPORTS_OVERLAY_SETUP_STATUS:
-				e = new NodeReportsOverlaySetupStatus(data);
-				break;
-			case Protocol.REGISTRY_REQUESTS_TASK_INITIATE:
-				e = new RegistryRequestsTaskInitiate(data);
-				break;
-			case Protocol.OVERLAY_NODE_SENDS_DATA:
-				e = new OverlayNodeSendsData(data);
-				break;
-			case Protocol.OVERLAY_NODE_REPORTS_TASK_FINISHED:
-				e = new OverlayNodeReportsTaskFinished(data);
-				break;
-			case Protocol.REGISTRY_REQUESTS_TRAFFIC_SUMMARY:
-				e = new RegistryRequestsTrafficSummary(data);
-				break;
-			case Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY:
-				e = new OverlayNodeReportsTrafficSummary(data);
-				break;
-			case Protocol.OVERLAY_NODE_SENDS_DEREGISTRATION:
-				e = new OverlayNodeSendsDeregistration(data);
-				break;
-			case Protocol.REGISTRY_REPORTS_DEREGISTRATION_STATUS:
-				e = new RegistryReportsDeregistrationStatus(data);
-				break;
-			default:
-				System.out.println("Error in Event Factory. Message type unknown: " + data[0]);
-				Exception e1 = new Exception();
-				e1.printStackTrace();
-				System.exit(-1);
+		byte type = buffer.get(buffer.position());
+		try {
+			switch(type) {
+				case Protocol.OVERLAY_NODE_SENDS_REGISTRATION:
+					e = new OverlayNodeSendsRegistration(buffer);
+					break;
+				case Protocol.REGISTRY_REPORTS_REGISTRATION_STATUS:
+					e = new RegistryReportsRegistrationStatus(buffer);
+					break;
+				case Protocol.REGISTRY_SENDS_NODE_MANIFEST:
+					e = new RegistrySendsNodeManifest(buffer);
+					break;
+				case Protocol.NODE_REPORTS_OVERLAY_SETUP_STATUS:
+					e = new NodeReportsOverlaySetupStatus(buffer);
+					break;
+				case Protocol.REGISTRY_REQUESTS_TASK_INITIATE:
+					e = new RegistryRequestsTaskInitiate(buffer);
+					break;
+				case Protocol.OVERLAY_NODE_SENDS_DATA:
+					e = new OverlayNodeSendsData(buffer);
+					break;
+				case Protocol.OVERLAY_NODE_REPORTS_TASK_FINISHED:
+					e = new OverlayNodeReportsTaskFinished(buffer);
+					break;
+				case Protocol.REGISTRY_REQUESTS_TRAFFIC_SUMMARY:
+					e = new RegistryRequestsTrafficSummary(buffer);
+					break;
+				case Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY:
+					e = new OverlayNodeReportsTrafficSummary(buffer);
+					break;
+				case Protocol.OVERLAY_NODE_SENDS_DEREGISTRATION:
+					e = new OverlayNodeSendsDeregistration(buffer);
+					break;
+				case Protocol.REGISTRY_REPORTS_DEREGISTRATION_STATUS:
+					e = new RegistryReportsDeregistrationStatus(buffer);
+					break;
+				case Protocol.REGISTRY_REQUESTS_TRAFFIC_STATUS:
+					e = new RegistryRequestsTrafficStatus(buffer);
+					break;
+				case Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_STATUS:
+					e = new OverlayNodeReportsTrafficStatus(buffer);
+					break;
+				case Protocol.OVERLAY_NODE_SENDS_DATA_BATCH:
+					e = new OverlayNodeSendsDataBatch(buffer);
+					break;
+				case Protocol.OVERLAY_NODE_IDENTIFIES_PEER:
+					e = new OverlayNodeIdentifiesPeer(buffer);
+					break;
+				case Protocol.OVERLAY_NODE_ACKS_DATA:
+					e = new OverlayNodeAcksData(buffer);
+					break;
+				case Protocol.OVERLAY_NODE_REPORTS_THROUGHPUT:
+					e = new OverlayNodeReportsThroughput(buffer);
+					break;
+				case Protocol.OVERLAY_NODE_GRANTS_CREDITS:
+					e = new OverlayNodeGrantsCredits(buffer);
+					break;
+				default:
+					System.out.println("Error in Event Factory. Message type unknown: " + type);
+					Exception e1 = new Exception();
+					e1.printStackTrace();
+					System.exit(-1);
+			}
+		} catch (BufferUnderflowException bue) {
+			throw new IOException("Frame too short for message type " + type);
 		}
 		
 		return e;
@@ -1,17 +1,15 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /***
  * Holds all information regarding the node overlay setup status. It marshalls and unmarshalls
  * the data as well.
- * 
+ *
+ * The node also reports how long it took to connect to its routing entries, so the registry
+ * can tell how long building the overlay took.
+ *
  * @author acarbona
  *
  */
@@ -20,55 +18,77 @@ public class NodeReportsOverlaySetupStatus implements Event {
 	private int type;
 	private int id;
 	private String info;
-	
+	private byte[] infoBytes;
+	private long setupTime;
+
 	/***
 	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
-	 * It is used when the node wishes to get information from a message it received. 
-	 * 
+	 * It is used when the node wishes to get information from a message it received.
+	 *
 	 * @param marshalledBytes - The byte array that needs to be unmarshalled
 	 * @throws IOException
 	 */
 	public NodeReportsOverlaySetupStatus (byte[] marshalledBytes) throws IOException{
-		ByteArrayInputStream bInputStream = new ByteArrayInputStream(marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(bInputStream));
-		
-		type = din.read();
-		id = din.readInt();
-		
-		int infoLength = din.read();
-		byte[] infoBytes = new byte[infoLength];
-		din.readFully(infoBytes);
-		
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public NodeReportsOverlaySetupStatus (ByteBuffer buffer) {
+		type = buffer.get();
+		id = buffer.getInt();
+
+		int infoLength = buffer.get() & 0xFF;
+		infoBytes = new byte[infoLength];
+		buffer.get(infoBytes);
+
 		info = new String(infoBytes);
-		
-		bInputStream.close();
-		din.close();
+
+		setupTime = buffer.getLong();
 	}
-	
+
 	/***
 	 * This constructor is used when the node wishes to send the message. It will save the
-	 * information in the class variables. The getBytes method then can be used to turn it 
+	 * information in the class variables. The getBytes method then can be used to turn it
 	 * into a byte array
-	 * 
+	 *
 	 * @param type - the type of message (PROTOCOL.NodeReportsOverlaySetupStatus)
 	 * @param id - The id of the node send the status
 	 * @param information - Any informational message the node wishes to send
 	 */
 	public NodeReportsOverlaySetupStatus (int type, int id, String information) {
+		this(type, id, information, 0);
+	}
+
+	/***
+	 * The same as the constructor above, but with the time the node spent setting up its connections
+	 *
+	 * @param setupTime - the time taken in microseconds
+	 */
+	public NodeReportsOverlaySetupStatus (int type, int id, String information, long setupTime) {
 		this.type = type;
 		this.id = id;
 		info = information;
+		infoBytes = information.getBytes();
+		this.setupTime = setupTime;
 	}
-	
+
 	// Getters for the information (useful when attempting to read the values)
 	public int getID() {
 		return id;
 	}
-	
+
 	public String getMessage() {
 		return info;
 	}
-	
+
+	public long getSetupTime() {
+		return setupTime;
+	}
+
 	@Override
 	public byte getType() {
 		return (byte) type;
@@ -76,28 +96,23 @@ public class NodeReportsOverlaySetupStatus implements Event {
 
 	@Override
 	public byte[] getBytes() throws IOException {
-		byte[] marshalledBytes;
-		
-		ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(bOutputStream));
-		
-		dout.write(type);
-		dout.writeInt(id);
-		
-		byte[] infoBytes = info.getBytes();
-		int length = infoBytes.length;
-		
-		dout.write(length);
-		dout.write(infoBytes);
-		
-		dout.flush();
-		
-		marshalledBytes = bOutputStream.toByteArray();
-		
-		dout.close();
-		bOutputStream.close();
-		
-		return marshalledBytes;
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		return 1 + 4 + 1 + infoBytes.length + 8;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.putInt(id);
+		buffer.put((byte) infoBytes.length);
+		buffer.put(infoBytes);
+		buffer.putLong(setupTime);
 	}
 
 }
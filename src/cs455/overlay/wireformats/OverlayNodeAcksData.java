@@ -0,0 +1,101 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/***
+ * Provides the encapsulation of the data pertaining to the OverlayNodeAcksData
+ * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
+ *
+ * In a window workload the destination of the data messages sends this back to their source to
+ * say how many more of its messages arrived. It is routed through the overlay like a data
+ * message, so the destination id is at the same offset (OverlayNodeSendsData.DEST_OFFSET).
+ *
+ * @author acarbona
+ *
+ */
+public class OverlayNodeAcksData implements Event {
+
+	private int type;
+	private int destID;
+	private int srcID;
+	private int count;
+
+	/***
+	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
+	 * It is used when the node wishes to get information from a message it received.
+	 *
+	 * @param marshalledBytes - The byte array that needs to be unmarshalled
+	 * @throws IOException
+	 */
+	public OverlayNodeAcksData(byte[] marshalledBytes) throws IOException {
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public OverlayNodeAcksData(ByteBuffer buffer) {
+		type = buffer.get();
+		destID = buffer.getInt();
+		srcID = buffer.getInt();
+		count = buffer.getInt();
+	}
+
+	/***
+	 * This constructor is used when the node wishes to send the message. It will save the
+	 * information in the class variables. The getBytes method then can be used to turn it
+	 * into a byte array
+	 *
+	 * @param type - the type of message (PROTOCOL.OverlayNodeAcksData)
+	 * @param destID - the id of the node that sent the data
+	 * @param srcID - the id of the node that received it
+	 * @param count - the number of messages received since the last ack
+	 */
+	public OverlayNodeAcksData(int type, int destID, int srcID, int count) {
+		this.type = type;
+		this.destID = destID;
+		this.srcID = srcID;
+		this.count = count;
+	}
+
+	public int getDestID() {
+		return destID;
+	}
+
+	public int getSrcID() {
+		return srcID;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public byte getType() {
+		return (byte) type;
+	}
+
+	@Override
+	public byte[] getBytes() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		return 1 + 4 + 4 + 4;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.putInt(destID);
+		buffer.putInt(srcID);
+		buffer.putInt(count);
+	}
+
+}
@@ -0,0 +1,83 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/***
+ * Provides the encapsulation of the data pertaining to the OverlayNodeGrantsCredits
+ * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
+ *
+ * A node sends this back on a connection once it has dealt with data frames that came in on it,
+ * giving the other end that many more frames it can send. It never reaches the nodes' onEvent,
+ * the connection's FlowControl picks it up as it is read.
+ *
+ * @author acarbona
+ *
+ */
+public class OverlayNodeGrantsCredits implements Event {
+
+	private int type;
+	private int count;
+
+	/***
+	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
+	 * It is used when the node wishes to get information from a message it received.
+	 *
+	 * @param marshalledBytes - The byte array that needs to be unmarshalled
+	 * @throws IOException
+	 */
+	public OverlayNodeGrantsCredits(byte[] marshalledBytes) throws IOException {
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public OverlayNodeGrantsCredits(ByteBuffer buffer) {
+		type = buffer.get();
+		count = buffer.getInt();
+	}
+
+	/***
+	 * This constructor is used when the node wishes to send the message. It will save the
+	 * information in the class variables. The getBytes method then can be used to turn it
+	 * into a byte array
+	 *
+	 * @param type - the type of message (PROTOCOL.OverlayNodeGrantsCredits)
+	 * @param count - the number of frames the other end may send
+	 */
+	public OverlayNodeGrantsCredits(int type, int count) {
+		this.type = type;
+		this.count = count;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public byte getType() {
+		return (byte) type;
+	}
+
+	@Override
+	public byte[] getBytes() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		return 1 + 4;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.putInt(count);
+	}
+
+}
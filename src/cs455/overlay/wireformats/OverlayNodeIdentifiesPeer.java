@@ -0,0 +1,106 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/***
+ * Provides the encapsulation of the data pertaining to the OverlayNodeIdentifiesPeer
+ * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
+ *
+ * A node sends this as the first message on every connection it opens to a routing entry. The
+ * address and port are the connecting end of that connection, so the accepting node can find
+ * the exact connection among the ones its server thread accepted and use it to send back.
+ *
+ * @author acarbona
+ *
+ */
+public class OverlayNodeIdentifiesPeer implements Event {
+
+	private int type;
+	private int id;
+	private byte[] ipArray;
+	private int portNum;
+
+	/***
+	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
+	 * It is used when the node wishes to get information from a message it received.
+	 *
+	 * @param marshalledBytes - The byte array that needs to be unmarshalled
+	 * @throws IOException
+	 */
+	public OverlayNodeIdentifiesPeer(byte[] marshalledBytes) throws IOException {
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public OverlayNodeIdentifiesPeer(ByteBuffer buffer) {
+		type = buffer.get();
+		id = buffer.getInt();
+
+		int length = buffer.get() & 0xFF;
+		ipArray = new byte[length];
+		buffer.get(ipArray);
+
+		portNum = buffer.getInt();
+	}
+
+	/***
+	 * This constructor is used when the node wishes to send the message. It will save the
+	 * information in the class variables. The getBytes method then can be used to turn it
+	 * into a byte array
+	 *
+	 * @param type - the type of message (PROTOCOL.OverlayNodeIdentifiesPeer)
+	 * @param id - the id of the node that opened the connection
+	 * @param ipAddr - the local address of the connection
+	 * @param port - the local port of the connection
+	 */
+	public OverlayNodeIdentifiesPeer(int type, int id, byte[] ipAddr, int port) {
+		this.type = type;
+		this.id = id;
+		ipArray = ipAddr;
+		portNum = port;
+	}
+
+	public int getID() {
+		return id;
+	}
+
+	public byte[] getIPAddress() {
+		return ipArray;
+	}
+
+	public int getPort() {
+		return portNum;
+	}
+
+	@Override
+	public byte getType() {
+		return (byte) type;
+	}
+
+	@Override
+	public byte[] getBytes() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		return 1 + 4 + 1 + ipArray.length + 4;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.putInt(id);
+		buffer.put((byte) ipArray.length);
+		buffer.put(ipArray);
+		buffer.putInt(portNum);
+	}
+
+}
@@ -1,17 +1,12 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /***
  * Provides the encapsulation of the data pertaining to the OverlayNodeReportsTaskFinished
  * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
- * 
+ *
  * @author acarbona
  *
  */
@@ -24,33 +19,36 @@ public class OverlayNodeReportsTaskFinished implements Event {
 
 	/***
 	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
-	 * It is used when the node wishes to get information from a message it received. 
-	 * 
+	 * It is used when the node wishes to get information from a message it received.
+	 *
 	 * @param marshalledBytes - The byte array that needs to be unmarshalled
 	 * @throws IOException
 	 */
 	public OverlayNodeReportsTaskFinished(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream bInputStream = new ByteArrayInputStream(marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(bInputStream));
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public OverlayNodeReportsTaskFinished(ByteBuffer buffer) {
+		type = buffer.get();
 
-		type = din.read();
-		
-		int arrayLength = din.read();
+		int arrayLength = buffer.get() & 0xFF;
 		ipAddress = new byte[arrayLength];
-		din.readFully(ipAddress);
-		
-		portNum = din.readInt();
-		id = din.readInt();
-		
-		bInputStream.close();
-		din.close();
+		buffer.get(ipAddress);
+
+		portNum = buffer.getInt();
+		id = buffer.getInt();
 	}
-	
+
 	/***
 	 * This constructor is used when the node wishes to send the message. It will save the
-	 * information in the class variables. The getBytes method then can be used to turn it 
+	 * information in the class variables. The getBytes method then can be used to turn it
 	 * into a byte array
-	 * 
+	 *
 	 * @param type - the type of message (PROTOCOL.OverlayNodeReportsTaskFinished)
 	 * @param ipAddress - The current ip address of the node sending the message
 	 * @param portNum - the port number of the node sending the message
@@ -62,16 +60,16 @@ public class OverlayNodeReportsTaskFinished implements Event {
 		this.portNum = portNum;
 		this.id = id;
 	}
-	
+
 	// Getters (useful for reading a message)
 	public byte[] getIPAddress() {
 		return ipAddress;
 	}
-	
+
 	public int getPortNum() {
 		return portNum;
 	}
-	
+
 	public int getID() {
 		return id;
 	}
@@ -83,28 +81,23 @@ public class OverlayNodeReportsTaskFinished implements Event {
 
 	@Override
 	public byte[] getBytes() throws IOException {
-		byte[] marshalledBytes;
-
-		ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(bOutputStream));
-
-		dout.write(type);
-
-		int length = ipAddress.length;
-		dout.write(length);
-		dout.write(ipAddress);
-		
-		dout.writeInt(portNum);
-		dout.writeInt(id);
-		
-		dout.flush();
-		
-		marshalledBytes = bOutputStream.toByteArray();
-		
-		dout.close();
-		bOutputStream.close();
-		
-		return marshalledBytes;
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		return 1 + 1 + ipAddress.length + 4 + 4;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.put((byte) ipAddress.length);
+		buffer.put(ipAddress);
+		buffer.putInt(portNum);
+		buffer.putInt(id);
 	}
 
 }
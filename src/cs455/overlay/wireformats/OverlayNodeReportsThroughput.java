@@ -0,0 +1,119 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/***
+ * Provides the encapsulation of the data pertaining to the OverlayNodeReportsThroughput
+ * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
+ *
+ * While a task is running each node sends one of these every report interval. The counts are
+ * only what changed since the node's previous report, so the registry can add them up as they
+ * arrive to get the rate of the whole overlay.
+ *
+ * @author acarbona
+ *
+ */
+public class OverlayNodeReportsThroughput implements Event {
+
+	private int type;
+	private int id;
+	private long elapsedMicros;
+	private long sent;
+	private long relayed;
+	private long received;
+
+	/***
+	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
+	 * It is used when the node wishes to get information from a message it received.
+	 *
+	 * @param marshalledBytes - The byte array that needs to be unmarshalled
+	 * @throws IOException
+	 */
+	public OverlayNodeReportsThroughput(byte[] marshalledBytes) throws IOException {
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public OverlayNodeReportsThroughput(ByteBuffer buffer) {
+		type = buffer.get();
+		id = buffer.getInt();
+		elapsedMicros = buffer.getLong();
+		sent = buffer.getLong();
+		relayed = buffer.getLong();
+		received = buffer.getLong();
+	}
+
+	/***
+	 * This constructor is used when the node wishes to send the message. It will save the
+	 * information in the class variables. The getBytes method then can be used to turn it
+	 * into a byte array
+	 *
+	 * @param type - the type of message (PROTOCOL.OverlayNodeReportsThroughput)
+	 * @param id - the id of the node sending the report
+	 * @param elapsedMicros - the time since the node's previous report
+	 * @param sent - the messages sent since the previous report
+	 * @param relayed - the messages relayed since the previous report
+	 * @param received - the messages received since the previous report
+	 */
+	public OverlayNodeReportsThroughput(int type, int id, long elapsedMicros, long sent, long relayed, long received) {
+		this.type = type;
+		this.id = id;
+		this.elapsedMicros = elapsedMicros;
+		this.sent = sent;
+		this.relayed = relayed;
+		this.received = received;
+	}
+
+	public int getID() {
+		return id;
+	}
+
+	public long getElapsedMicros() {
+		return elapsedMicros;
+	}
+
+	public long getSent() {
+		return sent;
+	}
+
+	public long getRelayed() {
+		return relayed;
+	}
+
+	public long getReceived() {
+		return received;
+	}
+
+	@Override
+	public byte getType() {
+		return (byte) type;
+	}
+
+	@Override
+	public byte[] getBytes() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		return 1 + 4 + 8 + 8 + 8 + 8;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.putInt(id);
+		buffer.putLong(elapsedMicros);
+		buffer.putLong(sent);
+		buffer.putLong(relayed);
+		buffer.putLong(received);
+	}
+
+}
@@ -0,0 +1,118 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/***
+ * Provides the encapsulation of the data pertaining to the OverlayNodeReportsTrafficStatus
+ * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
+ *
+ * It is a node's answer to a RegistryRequestsTrafficStatus probe. The counts are the ones since
+ * the last traffic summary, and unlike the summary they are not reset.
+ *
+ * @author acarbona
+ *
+ */
+public class OverlayNodeReportsTrafficStatus implements Event {
+
+	private int type;
+	private int id;
+	private int round;
+	private long totalSent;
+	private long totalRelayed;
+	private long totalReceived;
+
+	/***
+	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
+	 * It is used when the node wishes to get information from a message it received.
+	 *
+	 * @param marshalledBytes - The byte array that needs to be unmarshalled
+	 * @throws IOException
+	 */
+	public OverlayNodeReportsTrafficStatus(byte[] marshalledBytes) throws IOException {
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public OverlayNodeReportsTrafficStatus(ByteBuffer buffer) {
+		type = buffer.get();
+		id = buffer.getInt();
+		round = buffer.getInt();
+		totalSent = buffer.getLong();
+		totalRelayed = buffer.getLong();
+		totalReceived = buffer.getLong();
+	}
+
+	/***
+	 * This constructor is used when the node wishes to send the message. It will save the
+	 * information in the class variables. The getBytes method then can be used to turn it
+	 * into a byte array
+	 *
+	 * @param type - the type of message (PROTOCOL.OverlayNodeReportsTrafficStatus)
+	 * @param id - the id of the node sending the message
+	 * @param round - the round of the probe being answered
+	 * @param totalSent - the number of messages sent
+	 * @param totalRelayed - the number of messages relayed by the node
+	 * @param totalReceived - the number of messages received
+	 */
+	public OverlayNodeReportsTrafficStatus(int type, int id, int round, long totalSent, long totalRelayed, long totalReceived) {
+		this.type = type;
+		this.id = id;
+		this.round = round;
+		this.totalSent = totalSent;
+		this.totalRelayed = totalRelayed;
+		this.totalReceived = totalReceived;
+	}
+
+	public int getID() {
+		return id;
+	}
+
+	public int getRound() {
+		return round;
+	}
+
+	public long getTotalSent() {
+		return totalSent;
+	}
+
+	public long getTotalRelayed() {
+		return totalRelayed;
+	}
+
+	public long getTotalReceived() {
+		return totalReceived;
+	}
+
+	@Override
+	public byte getType() {
+		return (byte) type;
+	}
+
+	@Override
+	public byte[] getBytes() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		return 1 + 4 + 4 + 8 + 8 + 8;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.putInt(id);
+		buffer.putInt(round);
+		buffer.putLong(totalSent);
+		buffer.putLong(totalRelayed);
+		buffer.putLong(totalReceived);
+	}
+
+}
@@ -1,17 +1,16 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import cs455.overlay.util.LatencyHistogram;
 
 /***
  * Provides the encapsulation of the data pertaining to the OverlayNodeReportsTrafficSummary
  * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
- * 
+ *
+ * The summary ends with the histogram of the latencies of the timestamped messages the node received.
+ *
  * @author acarbona
  *
  */
@@ -24,35 +23,40 @@ public class OverlayNodeReportsTrafficSummary implements Event {
 	private long sumSent;
 	private int totalReceived;
 	private long sumReceived;
+	private LatencyHistogram latency;
 
 	/***
 	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
-	 * It is used when the node wishes to get information from a message it received. 
-	 * 
+	 * It is used when the node wishes to get information from a message it received.
+	 *
 	 * @param marshalledBytes - The byte array that needs to be unmarshalled
 	 * @throws IOException
 	 */
 	public OverlayNodeReportsTrafficSummary(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream bInputStream = new ByteArrayInputStream(marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(bInputStream));
-
-		type = din.read();
-		id = din.readInt();
-		totalSent = din.readInt();
-		totalRelayed = din.readInt();
-		sumSent = din.readLong();
-		totalReceived = din.readInt();
-		sumReceived = din.readLong();
-		
-		bInputStream.close();
-		din.close();
+		this(ByteBuffer.wrap(marshalledBytes));
 	}
-	
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public OverlayNodeReportsTrafficSummary(ByteBuffer buffer) {
+		type = buffer.get();
+		id = buffer.getInt();
+		totalSent = buffer.getInt();
+		totalRelayed = buffer.getInt();
+		sumSent = buffer.getLong();
+		totalReceived = buffer.getInt();
+		sumReceived = buffer.getLong();
+		latency = buffer.hasRemaining() ? LatencyHistogram.decode(buffer) : new LatencyHistogram();
+	}
+
 	/***
 	 * This constructor is used when the node wishes to send the message. It will save the
-	 * information in the class variables. The getBytes method then can be used to turn it 
+	 * information in the class variables. The getBytes method then can be used to turn it
 	 * into a byte array
-	 * 
+	 *
 	 * @param type - the type of message (PROTOCOL.OverlayNodeReportsTrafficSummary)
 	 * @param id - the id of the node sending the message
 	 * @param totalSent - the number of messages sent
@@ -62,6 +66,16 @@ public class OverlayNodeReportsTrafficSummary implements Event {
 	 * @param sumReceived - the summation of the payloads received by the node
 	 */
 	public OverlayNodeReportsTrafficSummary(int type, int id, int totalSent, int totalRelayed, long sumSent, int totalReceived, long sumReceived) {
+		this(type, id, totalSent, totalRelayed, sumSent, totalReceived, sumReceived, new LatencyHistogram());
+	}
+
+	/***
+	 * The same as the constructor above, with the latencies the node recorded
+	 *
+	 * @param latency - the latencies of the messages received by the node
+	 */
+	public OverlayNodeReportsTrafficSummary(int type, int id, int totalSent, int totalRelayed, long sumSent, int totalReceived, long sumReceived, LatencyHistogram latency) {
+		this.latency = latency;
 		this.type = type;
 		this.id = id;
 		this.totalSent = totalSent;
@@ -70,32 +84,36 @@ public class OverlayNodeReportsTrafficSummary implements Event {
 		this.sumReceived = sumReceived;
 		this.sumSent = sumSent;
 	}
-	
+
 	// Getters
 	public int getID() {
 		return id;
 	}
-	
+
 	public int getTotalSent() {
 		return totalSent;
 	}
-	
+
 	public int getTotalRelayed() {
 		return totalRelayed;
 	}
-	
+
 	public int getTotalReceived() {
 		return totalReceived;
 	}
-	
+
 	public long getSumSent() {
 		return sumSent;
 	}
-	
+
 	public long getSumReceived() {
 		return sumReceived;
 	}
 
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
 	@Override
 	public byte getType() {
 		return (byte) type;
@@ -103,27 +121,26 @@ public class OverlayNodeReportsTrafficSummary implements Event {
 
 	@Override
 	public byte[] getBytes() throws IOException {
-		byte[] marshalledBytes;
-
-		ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(bOutputStream));
-
-		dout.write(type);
-		dout.writeInt(id);
-		dout.writeInt(totalSent);
-		dout.writeInt(totalRelayed);
-		dout.writeLong(sumSent);
-		dout.writeInt(totalReceived);
-		dout.writeLong(sumReceived);
-		
-		dout.flush();
-		
-		marshalledBytes = bOutputStream.toByteArray();
-		
-		dout.close();
-		bOutputStream.close();
-		
-		return marshalledBytes;
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		return 1 + 4 + 4 + 4 + 8 + 4 + 8 + latency.getEncodedSize();
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.putInt(id);
+		buffer.putInt(totalSent);
+		buffer.putInt(totalRelayed);
+		buffer.putLong(sumSent);
+		buffer.putInt(totalReceived);
+		buffer.putLong(sumReceived);
+		latency.encode(buffer);
 	}
 
 }
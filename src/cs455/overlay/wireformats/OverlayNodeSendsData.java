@@ -1,100 +1,146 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /***
  * Provides the encapsulation of the data pertaining to the OverlayNodeSendsData
  * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
- * 
+ *
+ * The hop trace is optional. When it is there it is a two byte hop count followed by the ids
+ * as varints (7 bits per byte, so ids below 128 take a single byte).
+ *
  * @author acarbona
  *
  */
 public class OverlayNodeSendsData implements Event {
 
+	// Offsets of the fixed header fields, so a frame can be relayed without unmarshalling it.
+	// The hop trace is the last field, which lets a relay append to it by growing the frame.
+	// The send timestamp (if the flag is set) sits between the flags and the trace.
+	public static final int DEST_OFFSET = 1;
+	public static final int SRC_OFFSET = 5;
+	public static final int PAYLOAD_OFFSET = 9;
+	public static final int FLAGS_OFFSET = 13;
+	public static final int TIMESTAMP_OFFSET = 14;
+	public static final int HEADER_SIZE = 14;
+
+	public static final byte FLAG_TIMESTAMP = 0x01;
+	public static final byte FLAG_TRACE = 0x02;
+	public static final long NO_TIMESTAMP = -1;
+
 	private int type;
 	private int destID;
 	private int srcID;
 	private int payload;
-	private ArrayList<Integer> hopTrace;
+	private long timestamp;
+	private int[] hopTrace;
 
 	/***
 	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
-	 * It is used when the node wishes to get information from a message it received. 
-	 * 
+	 * It is used when the node wishes to get information from a message it received.
+	 *
 	 * @param marshalledBytes - The byte array that needs to be unmarshalled
 	 * @throws IOException
 	 */
 	public OverlayNodeSendsData(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream bInputStream = new ByteArrayInputStream(marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(bInputStream));
-
-		type = din.read();
-		destID = din.readInt();
-		srcID = din.readInt();
-		payload = din.readInt();
-		
-		hopTrace = new ArrayList<Integer>();
-		
-		int byteLength = din.readInt();
-		byte[] hopTraceBytes = new byte[byteLength];
-		din.readFully(hopTraceBytes);
-
-		ByteArrayInputStream bAInputStream = new ByteArrayInputStream(hopTraceBytes);
-		DataInputStream dAin = new DataInputStream(new BufferedInputStream(bAInputStream));
-		
-		for (int i = 0; i < byteLength/4; i++) {
-			hopTrace.add(dAin.readInt());
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 * The hop trace is read straight out of the buffer without a second stream.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public OverlayNodeSendsData(ByteBuffer buffer) {
+		type = buffer.get();
+		destID = buffer.getInt();
+		srcID = buffer.getInt();
+		payload = buffer.getInt();
+
+		byte flags = buffer.get();
+		timestamp = (flags & FLAG_TIMESTAMP) != 0 ? buffer.getLong() : NO_TIMESTAMP;
+
+		if ((flags & FLAG_TRACE) != 0) {
+			int hops = buffer.getShort() & 0xFFFF;
+			hopTrace = new int[hops];
+			for (int i = 0; i < hops; i++) {
+				hopTrace[i] = Varint.read(buffer);
+			}
 		}
-		
-		bAInputStream.close();
-		dAin.close();
-		bInputStream.close();
-		din.close();
 	}
-	
+
 	/***
 	 * This constructor is used when the node wishes to send the message. It will save the
-	 * information in the class variables. The getBytes method then can be used to turn it 
+	 * information in the class variables. The getBytes method then can be used to turn it
 	 * into a byte array
-	 * 
+	 *
 	 * @param type - the type of message (PROTOCOL.OverlayNodeSendsData)
 	 * @param dest - the destination id of the message
 	 * @param src - the source id of the message (which node INITIATED the send)
 	 * @param payload - the payload of the message
-	 * @param hopTrace - which nodes the message has been to
+	 * @param hopTrace - which nodes the message has been to, or null to send it without a trace
+	 */
+	public OverlayNodeSendsData(int type, int dest, int src, int payload, int[] hopTrace) {
+		this(type, dest, src, payload, hopTrace, NO_TIMESTAMP);
+	}
+
+	/***
+	 * The same as the constructor above, but with the time the message was sent so the destination
+	 * can work out its latency.
+	 *
+	 * @param timestamp - the send time in microseconds (see LatencyHistogram.currentTimeMicros), or NO_TIMESTAMP
 	 */
-	public OverlayNodeSendsData(int type, int dest, int src, int payload, ArrayList<Integer> hopTrace) {
+	public OverlayNodeSendsData(int type, int dest, int src, int payload, int[] hopTrace, long timestamp) {
 		this.type = type;
 		destID = dest;
 		srcID = src;
 		this.payload = payload;
 		this.hopTrace = hopTrace;
+		this.timestamp = timestamp;
 	}
-	
+
 	// Getters
 	public int getDestID() {
 		return destID;
 	}
-	
+
 	public int getSrcID() {
 		return srcID;
 	}
-	
+
 	public int getPayload() {
 		return payload;
 	}
-	
-	public ArrayList<Integer> getHopTrace() {
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public boolean hasTrace() {
+		return hopTrace != null;
+	}
+
+	/***
+	 * @return the ids of the nodes the message has been to, or null if it isn't traced
+	 */
+	public int[] getHopTrace() {
 		return hopTrace;
 	}
 
+	/***
+	 * Adds an id to the end of the hop trace (if the message is traced)
+	 * @param id - the id of the node the message is at
+	 */
+	public void addHop(int id) {
+		if (hopTrace != null) {
+			hopTrace = Arrays.copyOf(hopTrace, hopTrace.length + 1);
+			hopTrace[hopTrace.length - 1] = id;
+		}
+	}
+
 	@Override
 	public byte getType() {
 		return (byte) type;
@@ -102,42 +148,138 @@ public class OverlayNodeSendsData implements Event {
 
 	@Override
 	public byte[] getBytes() throws IOException {
-		byte[] marshalledBytes;
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		int encodedSize = 1 + 4 + 4 + 4 + 1;
+		if (timestamp != NO_TIMESTAMP) {
+			encodedSize += 8;
+		}
+		if (hopTrace != null) {
+			encodedSize += 2;
+			for (int i = 0; i < hopTrace.length; i++) {
+				encodedSize += Varint.size(hopTrace[i]);
+			}
+		}
+		return encodedSize;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.putInt(destID);
+		buffer.putInt(srcID);
+		buffer.putInt(payload);
+
+		byte flags = 0;
+		if (timestamp != NO_TIMESTAMP) {
+			flags |= FLAG_TIMESTAMP;
+		}
+		if (hopTrace != null) {
+			flags |= FLAG_TRACE;
+		}
+		buffer.put(flags);
+
+		if (timestamp != NO_TIMESTAMP) {
+			buffer.putLong(timestamp);
+		}
+		if (hopTrace != null) {
+			buffer.putShort((short) hopTrace.length);
+			for (int i = 0; i < hopTrace.length; i++) {
+				Varint.write(buffer, hopTrace[i]);
+			}
+		}
+	}
+
+	/***
+	 * Reads the destination id of a marshalled frame without moving the buffer's position
+	 * @param frame - the buffer positioned at the start of the frame
+	 * @return the destination id
+	 */
+	public static int peekDestID(ByteBuffer frame) {
+		return frame.getInt(frame.position() + DEST_OFFSET);
+	}
+
+	/***
+	 * Reads the destination id of a marshalled frame
+	 * @param frame - the marshalled frame
+	 * @return the destination id
+	 */
+	public static int peekDestID(byte[] frame) {
+		return ByteBuffer.wrap(frame).getInt(DEST_OFFSET);
+	}
 
-		ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(bOutputStream));
+	/***
+	 * Reads the source id of a marshalled frame without moving the buffer's position
+	 * @param frame - the buffer positioned at the start of the frame
+	 * @return the source id
+	 */
+	public static int peekSrcID(ByteBuffer frame) {
+		return frame.getInt(frame.position() + SRC_OFFSET);
+	}
 
-		dout.write(type);
-		dout.writeInt(destID);
-		dout.writeInt(srcID);
-		dout.writeInt(payload);
-		
-		ByteArrayOutputStream bAOutputStream = new ByteArrayOutputStream();
-		DataOutputStream daout = new DataOutputStream(new BufferedOutputStream(bAOutputStream));
+	/***
+	 * Reads the payload of a marshalled frame without moving the buffer's position
+	 * @param frame - the buffer positioned at the start of the frame
+	 * @return the payload
+	 */
+	public static int peekPayload(ByteBuffer frame) {
+		return frame.getInt(frame.position() + PAYLOAD_OFFSET);
+	}
 
-		for (int i = 0; i < hopTrace.size(); i++) {
-			daout.writeInt(hopTrace.get(i));
+	/***
+	 * Reads the send timestamp of a marshalled frame without moving the buffer's position
+	 * @param frame - the buffer positioned at the start of the frame
+	 * @return the timestamp, or NO_TIMESTAMP if the frame doesn't have one
+	 */
+	public static long peekTimestamp(ByteBuffer frame) {
+		if ((frame.get(frame.position() + FLAGS_OFFSET) & FLAG_TIMESTAMP) == 0) {
+			return NO_TIMESTAMP;
 		}
+		return frame.getLong(frame.position() + TIMESTAMP_OFFSET);
+	}
 
-		daout.flush();
-		byte[] hopTraceBytes = bAOutputStream.toByteArray();
+	/***
+	 * Copies the frame (position to limit) into a new array with one more id on the end of
+	 * the hop trace. Only the hop count is patched, the rest of the bytes are copied as they are.
+	 * A frame without a trace is copied unchanged.
+	 *
+	 * @param frame - the buffer holding exactly the marshalled frame
+	 * @param hopID - the id to add to the hop trace
+	 * @return the relayed frame
+	 */
+	public static byte[] appendHop(ByteBuffer frame, int hopID) {
+		int start = frame.position();
+		byte flags = frame.get(start + FLAGS_OFFSET);
+		if ((flags & FLAG_TRACE) == 0) {
+			return copyFrame(frame);
+		}
 
-		int lengthArray = hopTraceBytes.length;
+		int length = frame.remaining();
+		byte[] relayed = new byte[length + Varint.size(hopID)];
+		frame.duplicate().get(relayed, 0, length);
 
-		dout.writeInt(lengthArray);
-		dout.write(hopTraceBytes);
-		
-		dout.flush();
-		
-		marshalledBytes = bOutputStream.toByteArray();
-		
-		bAOutputStream.close();
-		daout.close();
-		dout.close();
-		bOutputStream.close();
-		
-		return marshalledBytes;
+		ByteBuffer view = ByteBuffer.wrap(relayed);
+		int countOffset = (flags & FLAG_TIMESTAMP) != 0 ? TIMESTAMP_OFFSET + 8 : TIMESTAMP_OFFSET;
+		view.putShort(countOffset, (short) (view.getShort(countOffset) + 1));
+		view.position(length);
+		Varint.write(view, hopID);
+		return relayed;
 	}
 
+	/***
+	 * Copies the frame (position to limit) into a new array without touching the hop trace
+	 * @param frame - the buffer holding exactly the marshalled frame
+	 * @return the copied frame
+	 */
+	public static byte[] copyFrame(ByteBuffer frame) {
+		byte[] copy = new byte[frame.remaining()];
+		frame.duplicate().get(copy);
+		return copy;
+	}
 
 }
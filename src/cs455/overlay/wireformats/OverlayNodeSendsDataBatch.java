@@ -0,0 +1,172 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/***
+ * Provides the encapsulation of the data pertaining to the OverlayNodeSendsDataBatch
+ * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
+ *
+ * A batch carries many (destination, source, payload) records that are all going to the same
+ * next hop, so they share one frame. Each record counts as one message. Batched records have no
+ * hop trace, but they can carry their send timestamps (the flags say whether they do).
+ *
+ * @author acarbona
+ *
+ */
+public class OverlayNodeSendsDataBatch implements Event {
+
+	private int type;
+	private int count;
+	private int[] destIDs;
+	private int[] srcIDs;
+	private int[] payloads;
+	private long[] timestamps;
+
+	/***
+	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
+	 * It is used when the node wishes to get information from a message it received.
+	 *
+	 * @param marshalledBytes - The byte array that needs to be unmarshalled
+	 * @throws IOException
+	 */
+	public OverlayNodeSendsDataBatch(byte[] marshalledBytes) throws IOException {
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 * The records are read straight into the arrays.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public OverlayNodeSendsDataBatch(ByteBuffer buffer) {
+		type = buffer.get();
+		byte flags = buffer.get();
+		count = buffer.getInt();
+
+		destIDs = new int[count];
+		srcIDs = new int[count];
+		payloads = new int[count];
+		if ((flags & OverlayNodeSendsData.FLAG_TIMESTAMP) != 0) {
+			timestamps = new long[count];
+		}
+
+		for (int i = 0; i < count; i++) {
+			destIDs[i] = buffer.getInt();
+			srcIDs[i] = buffer.getInt();
+			payloads[i] = buffer.getInt();
+			if (timestamps != null) {
+				timestamps[i] = buffer.getLong();
+			}
+		}
+	}
+
+	/***
+	 * This constructor is used when the node wishes to send the message. The batch starts empty
+	 * and the records are put in with add. The getBytes method then can be used to turn it
+	 * into a byte array
+	 *
+	 * @param type - the type of message (PROTOCOL.OverlayNodeSendsDataBatch)
+	 * @param capacity - the number of records expected (the batch grows if more are added)
+	 * @param withTimestamps - whether the records carry send timestamps
+	 */
+	public OverlayNodeSendsDataBatch(int type, int capacity, boolean withTimestamps) {
+		this.type = type;
+		count = 0;
+		destIDs = new int[capacity];
+		srcIDs = new int[capacity];
+		payloads = new int[capacity];
+		if (withTimestamps) {
+			timestamps = new long[capacity];
+		}
+	}
+
+	/***
+	 * Adds a record to the end of the batch
+	 * @param dest - the destination id of the message
+	 * @param src - the source id of the message (which node INITIATED the send)
+	 * @param payload - the payload of the message
+	 * @param timestamp - the send time, ignored if the batch doesn't carry timestamps
+	 */
+	public void add(int dest, int src, int payload, long timestamp) {
+		if (count == destIDs.length) {
+			int capacity = Math.max(8, count * 2);
+			destIDs = Arrays.copyOf(destIDs, capacity);
+			srcIDs = Arrays.copyOf(srcIDs, capacity);
+			payloads = Arrays.copyOf(payloads, capacity);
+			if (timestamps != null) {
+				timestamps = Arrays.copyOf(timestamps, capacity);
+			}
+		}
+
+		destIDs[count] = dest;
+		srcIDs[count] = src;
+		payloads[count] = payload;
+		if (timestamps != null) {
+			timestamps[count] = timestamp;
+		}
+		count++;
+	}
+
+	// Getters
+	public int getCount() {
+		return count;
+	}
+
+	public boolean hasTimestamps() {
+		return timestamps != null;
+	}
+
+	public int getDestID(int record) {
+		return destIDs[record];
+	}
+
+	public int getSrcID(int record) {
+		return srcIDs[record];
+	}
+
+	public int getPayload(int record) {
+		return payloads[record];
+	}
+
+	public long getTimestamp(int record) {
+		return timestamps != null ? timestamps[record] : OverlayNodeSendsData.NO_TIMESTAMP;
+	}
+
+	@Override
+	public byte getType() {
+		return (byte) type;
+	}
+
+	@Override
+	public byte[] getBytes() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		int recordSize = timestamps != null ? 4 + 4 + 4 + 8 : 4 + 4 + 4;
+		return 1 + 1 + 4 + count * recordSize;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.put(timestamps != null ? OverlayNodeSendsData.FLAG_TIMESTAMP : 0);
+		buffer.putInt(count);
+
+		for (int i = 0; i < count; i++) {
+			buffer.putInt(destIDs[i]);
+			buffer.putInt(srcIDs[i]);
+			buffer.putInt(payloads[i]);
+			if (timestamps != null) {
+				buffer.putLong(timestamps[i]);
+			}
+		}
+	}
+
+}
@@ -1,17 +1,16 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /***
  * Provides the encapsulation of the data pertaining to the OverlayNodeSendsRegistration
  * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
- * 
+ *
+ * Besides the port of the node's server socket it carries the local port of the connection the
+ * request is sent on, so the registry can tell which accepted connection it came from even when
+ * many nodes share an address.
+ *
  * @author acarbona
  *
  */
@@ -20,56 +19,64 @@ public class OverlayNodeSendsRegistration implements Event {
 	private int type;
 	private byte[] ipArray;
 	private int portNum;
-	
+	private int connectionPort;
+
 	/***
 	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
-	 * It is used when the node wishes to get information from a message it received. 
-	 * 
+	 * It is used when the node wishes to get information from a message it received.
+	 *
 	 * @param marshalledBytes - The byte array that needs to be unmarshalled
 	 * @throws IOException
 	 */
 	public OverlayNodeSendsRegistration(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream bInputStream = new ByteArrayInputStream(marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(bInputStream));
-		
-		type = din.readByte();
-		
-		int length = din.read();
-		byte[] ipAddress = new byte[length];
-		
-		din.readFully(ipAddress);
-		
-		ipArray = ipAddress;
-		
-		portNum = din.readInt();
-		
-		bInputStream.close();
-		din.close();
+		this(ByteBuffer.wrap(marshalledBytes));
 	}
-	
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public OverlayNodeSendsRegistration(ByteBuffer buffer) {
+		type = buffer.get();
+
+		int length = buffer.get() & 0xFF;
+		ipArray = new byte[length];
+		buffer.get(ipArray);
+
+		portNum = buffer.getInt();
+		connectionPort = buffer.getInt();
+	}
+
 	/***
 	 * This constructor is used when the node wishes to send the message. It will save the
-	 * information in the class variables. The getBytes method then can be used to turn it 
+	 * information in the class variables. The getBytes method then can be used to turn it
 	 * into a byte array
-	 * 
+	 *
 	 * @param type - the type of message (PROTOCOL.OverlayNodeSendsRegistration)
 	 * @param ipAddr - the ip address of the node
 	 * @param port - the port of the node
+	 * @param connectionPort - the local port of the connection to the registry
 	 */
-	public OverlayNodeSendsRegistration(int type, byte[] ipAddr, int port) {
+	public OverlayNodeSendsRegistration(int type, byte[] ipAddr, int port, int connectionPort) {
 		this.type = type;
 		ipArray = ipAddr;
 		portNum = port;
+		this.connectionPort = connectionPort;
 	}
-	
+
 	public byte[] getIPAddress() {
 		return ipArray;
 	}
-	
+
 	public int getPort() {
 		return portNum;
 	}
-	
+
+	public int getConnectionPort() {
+		return connectionPort;
+	}
+
 	@Override
 	public byte getType() {
 		return (byte) type;
@@ -77,26 +84,23 @@ public class OverlayNodeSendsRegistration implements Event {
 
 	@Override
 	public byte[] getBytes() throws IOException{
-		byte[] marshalledBytes = null;
-		
-		ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(bOutputStream));
-		
-		dout.write(type);
-		
-		int length = ipArray.length;
-		dout.write(length);
-		dout.write(ipArray);
-		dout.writeInt(portNum);
-		
-		dout.flush();
-		
-		marshalledBytes = bOutputStream.toByteArray();
-		
-		bOutputStream.close();
-		dout.close();
-		
-		return marshalledBytes;
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		return 1 + 1 + ipArray.length + 4 + 4;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.put((byte) ipArray.length);
+		buffer.put(ipArray);
+		buffer.putInt(portNum);
+		buffer.putInt(connectionPort);
 	}
 
 }
@@ -19,5 +19,12 @@ public class Protocol {
 	public static final int OVERLAY_NODE_REPORTS_TASK_FINISHED = 10;
 	public static final int REGISTRY_REQUESTS_TRAFFIC_SUMMARY = 11;
 	public static final int OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY = 12;
+	public static final int REGISTRY_REQUESTS_TRAFFIC_STATUS = 13;
+	public static final int OVERLAY_NODE_REPORTS_TRAFFIC_STATUS = 14;
+	public static final int OVERLAY_NODE_SENDS_DATA_BATCH = 15;
+	public static final int OVERLAY_NODE_IDENTIFIES_PEER = 16;
+	public static final int OVERLAY_NODE_ACKS_DATA = 17;
+	public static final int OVERLAY_NODE_REPORTS_THROUGHPUT = 18;
+	public static final int OVERLAY_NODE_GRANTS_CREDITS = 19;
 
 }
@@ -1,17 +1,12 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /***
  * Provides the encapsulation of the data pertaining to the RegistryReportsDeregistrationStatus
  * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
- * 
+ *
  * @author acarbona
  *
  */
@@ -20,38 +15,41 @@ public class RegistryReportsDeregistrationStatus implements Event {
 	private int type;
 	private int success;
 	private String info;
-	
+	private byte[] infoBytes;
+
 	/***
 	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
-	 * It is used when the node wishes to get information from a message it received. 
-	 * 
+	 * It is used when the node wishes to get information from a message it received.
+	 *
 	 * @param marshalledBytes - The byte array that needs to be unmarshalled
 	 * @throws IOException
 	 */
 	public RegistryReportsDeregistrationStatus (byte[] marshalledByte) throws IOException {
-		ByteArrayInputStream bInputStream = new ByteArrayInputStream(marshalledByte);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(bInputStream));
-		
-		type = din.read();
-
-		success = din.readInt();
-		
-		int length = din.read();
-		byte[] information = new byte[length];
-		
-		din.readFully(information);
-		
-		info = new String(information);
-		
-		bInputStream.close();
-		din.close();
+		this(ByteBuffer.wrap(marshalledByte));
+	}
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public RegistryReportsDeregistrationStatus (ByteBuffer buffer) {
+		type = buffer.get();
+
+		success = buffer.getInt();
+
+		int length = buffer.get() & 0xFF;
+		infoBytes = new byte[length];
+		buffer.get(infoBytes);
+
+		info = new String(infoBytes);
 	}
-	
+
 	/***
 	 * This constructor is used when the node wishes to send the message. It will save the
-	 * information in the class variables. The getBytes method then can be used to turn it 
+	 * information in the class variables. The getBytes method then can be used to turn it
 	 * into a byte array
-	 * 
+	 *
 	 * @param type - the type of message (PROTOCOL.RegistryReportsDeregistrationStatus)
 	 * @param success - the success of the deregistration (-1 if unsuccessful and the id if it was successful)
 	 * @param message - the information message associated with the status
@@ -60,16 +58,17 @@ public class RegistryReportsDeregistrationStatus implements Event {
 		this.type = type;
 		this.success = success;
 		info = message;
+		infoBytes = message.getBytes();
 	}
-	
+
 	public int getSuccess() {
 		return success;
 	}
-	
+
 	public String getMessage() {
 		return info;
 	}
-	
+
 	@Override
 	public byte getType() {
 		return (byte) type;
@@ -77,27 +76,22 @@ public class RegistryReportsDeregistrationStatus implements Event {
 
 	@Override
 	public byte[] getBytes() throws IOException {
-		byte[] marshalledBytes = null;
-		
-		ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(bOutputStream));
-		
-		dout.write(type);
-		dout.writeInt(success);
-		byte[] infobytes = info.getBytes();
-		int length = infobytes.length;
-		
-		dout.write(length);
-		dout.write(infobytes);
-		
-		dout.flush();
-		
-		marshalledBytes = bOutputStream.toByteArray();
-		
-		bOutputStream.close();
-		dout.close();
-		
-		return marshalledBytes;
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		return 1 + 4 + 1 + infoBytes.length;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.putInt(success);
+		buffer.put((byte) infoBytes.length);
+		buffer.put(infoBytes);
 	}
 
 }
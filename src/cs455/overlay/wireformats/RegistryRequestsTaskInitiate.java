@@ -1,17 +1,17 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import cs455.overlay.workload.WorkloadSpec;
 
 /***
  * Provides the encapsulation of the data pertaining to the REgistryRequestsTaskInitiate
  * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
- * 
+ *
+ * Along with the number of messages it carries the rest of the workload (how fast to send and
+ * where to), so every node generates its traffic the same way.
+ *
  * @author acarbona
  *
  */
@@ -19,41 +19,58 @@ public class RegistryRequestsTaskInitiate implements Event {
 
 
 	private int type;
-	private int numPackets;
+	private WorkloadSpec workload;
 
 	/***
 	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
-	 * It is used when the node wishes to get information from a message it received. 
-	 * 
+	 * It is used when the node wishes to get information from a message it received.
+	 *
 	 * @param marshalledBytes - The byte array that needs to be unmarshalled
 	 * @throws IOException
 	 */
 	public RegistryRequestsTaskInitiate (byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream bInputStream = new ByteArrayInputStream(marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(bInputStream));
-
-		type = din.read();
-		numPackets = din.readInt();
-		
-		bInputStream.close();
-		din.close();
+		this(ByteBuffer.wrap(marshalledBytes));
 	}
-	
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public RegistryRequestsTaskInitiate (ByteBuffer buffer) {
+		type = buffer.get();
+		workload = WorkloadSpec.decode(buffer);
+	}
+
 	/***
 	 * This constructor is used when the node wishes to send the message. It will save the
-	 * information in the class variables. The getBytes method then can be used to turn it 
+	 * information in the class variables. The getBytes method then can be used to turn it
 	 * into a byte array
-	 * 
+	 *
 	 * @param type - the type of message (PROTOCOL.RegistryRequestsTaskInitiate)
 	 * @param numMessages - the number of messages each node must send
 	 */
 	public RegistryRequestsTaskInitiate(int type, int numMessages) {
+		this(type, new WorkloadSpec(numMessages));
+	}
+
+	/***
+	 * The same as the constructor above, with the whole workload
+	 *
+	 * @param type - the type of message (PROTOCOL.RegistryRequestsTaskInitiate)
+	 * @param workload - what each node must send
+	 */
+	public RegistryRequestsTaskInitiate(int type, WorkloadSpec workload) {
 		this.type = type;
-		numPackets = numMessages;
+		this.workload = workload;
 	}
-	
+
 	public int getNumPackets() {
-		return numPackets;
+		return workload.getNumMessages();
+	}
+
+	public WorkloadSpec getWorkload() {
+		return workload;
 	}
 
 	@Override
@@ -63,22 +80,20 @@ public class RegistryRequestsTaskInitiate implements Event {
 
 	@Override
 	public byte[] getBytes() throws IOException {
-		byte[] marshalledBytes;
-
-		ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(bOutputStream));
-
-		dout.write(type);
-		dout.writeInt(numPackets);
-		
-		dout.flush();
-		
-		marshalledBytes = bOutputStream.toByteArray();
-		
-		dout.close();
-		bOutputStream.close();
-		
-		return marshalledBytes;
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		return 1 + WorkloadSpec.ENCODED_SIZE;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		workload.encode(buffer);
 	}
 
 
@@ -0,0 +1,82 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/***
+ * Provides the encapsulation of the data pertaining to the RegistryRequestsTrafficStatus
+ * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
+ *
+ * The registry sends this probe after every node has finished its task, to find out whether
+ * all the messages have been delivered yet. The round lets it tell old replies from new ones.
+ *
+ * @author acarbona
+ *
+ */
+public class RegistryRequestsTrafficStatus implements Event {
+
+	private int type;
+	private int round;
+
+	/***
+	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
+	 * It is used when the node wishes to get information from a message it received.
+	 *
+	 * @param marshalledBytes - The byte array that needs to be unmarshalled
+	 * @throws IOException
+	 */
+	public RegistryRequestsTrafficStatus(byte[] marshalledBytes) throws IOException {
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public RegistryRequestsTrafficStatus(ByteBuffer buffer) {
+		type = buffer.get();
+		round = buffer.getInt();
+	}
+
+	/***
+	 * This constructor is used when the node wishes to send the message. It will save the
+	 * information in the class variables. The getBytes method then can be used to turn it
+	 * into a byte array
+	 *
+	 * @param type - the type of message (PROTOCOL.RegistryRequestsTrafficStatus)
+	 * @param round - the number of the probe
+	 */
+	public RegistryRequestsTrafficStatus(int type, int round) {
+		this.type = type;
+		this.round = round;
+	}
+
+	public int getRound() {
+		return round;
+	}
+
+	@Override
+	public byte getType() {
+		return (byte) type;
+	}
+
+	@Override
+	public byte[] getBytes() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getEncodedSize() {
+		return 1 + 4;
+	}
+
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.putInt(round);
+	}
+
+}
@@ -1,17 +1,12 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /***
  * Provides the encapsulation of the data pertaining to the REgistryRequestsTaskInitiate
  * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
- * 
+ *
  * @author acarbona
  *
  */
@@ -21,26 +16,29 @@ public class RegistryRequestsTrafficSummary implements Event {
 
 	/***
 	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
-	 * It is used when the node wishes to get information from a message it received. 
-	 * 
+	 * It is used when the node wishes to get information from a message it received.
+	 *
 	 * @param marshalledBytes - The byte array that needs to be unmarshalled
 	 * @throws IOException
 	 */
 	public RegistryRequestsTrafficSummary(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream bInputStream = new ByteArrayInputStream(marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(bInputStream));
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
 
-		type = din.read();
-		
-		bInputStream.close();
-		din.close();
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public RegistryRequestsTrafficSummary(ByteBuffer buffer) {
+		type = buffer.get();
 	}
-	
+
 	/***
 	 * This constructor is used when the node wishes to send the message. It will save the
-	 * information in the class variables. The getBytes method then can be used to turn it 
+	 * information in the class variables. The getBytes method then can be used to turn it
 	 * into a byte array
-	 * 
+	 *
 	 * @param type - the type of message (PROTOCOL.RegistryRequestsTaskInitiate)
 	 */
 	public RegistryRequestsTrafficSummary(int type) {
@@ -54,21 +52,19 @@ public class RegistryRequestsTrafficSummary implements Event {
 
 	@Override
 	public byte[] getBytes() throws IOException {
-		byte[] marshalledBytes;
-
-		ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(bOutputStream));
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
 
-		dout.write(type);
+	@Override
+	public int getEncodedSize() {
+		return 1;
+	}
 
-		dout.flush();
-		
-		marshalledBytes = bOutputStream.toByteArray();
-		
-		dout.close();
-		bOutputStream.close();
-		
-		return marshalledBytes;
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
 	}
 
 
@@ -1,18 +1,21 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /***
  * Provides the encapsulation of the data pertaining to the REgistryRequestsTaskInitiate
  * event. Also provides useful methods for the onEvent to use in marshalling and unmarshalling.
- * 
+ *
+ * The list of all the nodes is the same in every manifest the registry sends, so it can be
+ * encoded once with encodeNodeList and the bytes handed to each manifest. The list is a count
+ * followed by either a bitmap of the ids (bit i set if node i is in the overlay) or, when that
+ * would be bigger because the ids are spread out, the sorted ids as varint differences. The
+ * number of entries and nodes are a short and an int, so the overlay isn't limited to 255 nodes.
+ * The list starts with the number of bits in a node id, which the nodes need for routing.
+ *
  * @author acarbona
  *
  */
@@ -20,99 +23,187 @@ public class RegistrySendsNodeManifest implements Event {
 
 	private int type;
 	private int size;
-	
+
 	private ArrayList<Integer> hopIDs;
 	private ArrayList<byte[]> hopIPs;
 	private ArrayList<Integer> hopPorts;
 
+	private static final byte NODES_BITMAP = 0;
+	private static final byte NODES_DELTAS = 1;
+
+	private int idBits;
 	private int[] allNodes;
+	private byte[] encodedNodes;
 
 	/***
 	 * This constructor should be used by the EventFactory and the onEvent methods in the nodes.
-	 * It is used when the node wishes to get information from a message it received. 
-	 * 
+	 * It is used when the node wishes to get information from a message it received.
+	 *
 	 * @param marshalledBytes - The byte array that needs to be unmarshalled
 	 * @throws IOException
 	 */
 	public RegistrySendsNodeManifest(byte[] marshalledByte) throws IOException {
-		hopIDs = new ArrayList<Integer>();
-		hopIPs = new ArrayList<byte[]>();
-		hopPorts = new ArrayList<Integer>();
-		ByteArrayInputStream bInputStream = new ByteArrayInputStream(marshalledByte);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(bInputStream));
+		this(ByteBuffer.wrap(marshalledByte));
+	}
+
+	/***
+	 * Unmarshalls the event in place from the buffer, starting at its current position.
+	 * The node list is read straight out of the buffer without a second stream.
+	 *
+	 * @param buffer - The buffer holding the marshalled event
+	 */
+	public RegistrySendsNodeManifest(ByteBuffer buffer) {
+		type = buffer.get();
+		size = buffer.getShort() & 0xFFFF;
 
-		type = din.read();
-		size = din.read();
+		hopIDs = new ArrayList<Integer>(size);
+		hopIPs = new ArrayList<byte[]>(size);
+		hopPorts = new ArrayList<Integer>(size);
 
 		for (int i = 0; i < size; i++) {
-			hopIDs.add(din.readInt());
-			int length = din.read();
+			hopIDs.add(buffer.getInt());
+			int length = buffer.get() & 0xFF;
 			byte[] temp = new byte[length];
-			din.readFully(temp);
+			buffer.get(temp);
 			hopIPs.add(temp);
-			hopPorts.add(din.readInt());	
+			hopPorts.add(buffer.getInt());
 		}
-		
-		// Get number of nodes
-		int numNodes = din.read();
-
-		allNodes = new int[numNodes];
 
-		// Read in array
-		byte[] tempByte = new byte[numNodes*4];
-		din.readFully(tempByte);
-
-		ByteArrayInputStream bAInputStream = new ByteArrayInputStream(tempByte);
-		DataInputStream dAin = new DataInputStream(new BufferedInputStream(bAInputStream));
-		
-		for (int i = 0; i < numNodes; i++) {
-			allNodes[i] = dAin.readInt();
-		}
-
-		
-		bAInputStream.close();
-		dAin.close();
-		bInputStream.close();
-		din.close();
+		idBits = buffer.get();
+		allNodes = decodeNodeList(buffer);
 	}
-	
+
 	/***
 	 * This constructor is used when the node wishes to send the message. It will save the
-	 * information in the class variables. The getBytes method then can be used to turn it 
+	 * information in the class variables. The getBytes method then can be used to turn it
 	 * into a byte array
-	 * 
+	 *
 	 * @param type - the type of message (PROTOCOL.RegistryRequestsTaskInitiate)
 	 * @param size - the number of entries in the routing table
 	 * @param ids - a list of the node ids for the routing table (in order of hops)
 	 * @param ips - a list of the node ips for the routing table (in order of hops)
 	 * @param ports - a list of the node ports for the routing table (in order of hops)
 	 * @param nodes - a list of all the node ids for the entire overlay
+	 * @param idBits - the number of bits in a node id
 	 */
-	public RegistrySendsNodeManifest(int type, int size, ArrayList<Integer> ids, ArrayList<byte[]> ips, ArrayList<Integer> ports, int[] nodes) {
+	public RegistrySendsNodeManifest(int type, int size, ArrayList<Integer> ids, ArrayList<byte[]> ips, ArrayList<Integer> ports, int[] nodes, int idBits) {
 		this.type = type;
 		this.size = size;
 		hopIDs = ids;
 		hopIPs = ips;
 		hopPorts = ports;
 		allNodes = nodes;
+		this.idBits = idBits;
+		encodedNodes = encodeNodeList(nodes, idBits);
+	}
+
+	/***
+	 * The same as the constructor above, but with the node list already encoded
+	 *
+	 * @param encodedNodes - the node list as returned by encodeNodeList (it is not copied)
+	 */
+	public RegistrySendsNodeManifest(int type, int size, ArrayList<Integer> ids, ArrayList<byte[]> ips, ArrayList<Integer> ports, byte[] encodedNodes) {
+		this.type = type;
+		this.size = size;
+		hopIDs = ids;
+		hopIPs = ips;
+		hopPorts = ports;
+		this.encodedNodes = encodedNodes;
+	}
+
+	/***
+	 * Encodes the list of all the nodes the way it appears at the end of a manifest, using
+	 * whichever of the bitmap and the differences is smaller
+	 * @param nodes - the node ids (not negative, without repeats)
+	 * @param idBits - the number of bits in a node id
+	 * @return the encoded list
+	 */
+	public static byte[] encodeNodeList(int[] nodes, int idBits) {
+		int[] sorted = nodes.clone();
+		Arrays.sort(sorted);
+
+		int bitmapBytes = sorted.length == 0 ? 0 : (sorted[sorted.length - 1] >> 3) + 1;
+		int deltaBytes = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			deltaBytes += Varint.size(i == 0 ? sorted[i] : sorted[i] - sorted[i - 1]);
+		}
+
+		ByteBuffer buffer;
+		if (bitmapBytes + 4 <= deltaBytes) {
+			buffer = ByteBuffer.allocate(1 + 1 + 4 + 4 + bitmapBytes);
+			buffer.put((byte) idBits);
+			buffer.put(NODES_BITMAP);
+			buffer.putInt(sorted.length);
+			buffer.putInt(bitmapBytes);
+			byte[] bitmap = new byte[bitmapBytes];
+			for (int id : sorted) {
+				bitmap[id >> 3] |= 1 << (id & 7);
+			}
+			buffer.put(bitmap);
+		} else {
+			buffer = ByteBuffer.allocate(1 + 1 + 4 + deltaBytes);
+			buffer.put((byte) idBits);
+			buffer.put(NODES_DELTAS);
+			buffer.putInt(sorted.length);
+			for (int i = 0; i < sorted.length; i++) {
+				Varint.write(buffer, i == 0 ? sorted[i] : sorted[i] - sorted[i - 1]);
+			}
+		}
+		return buffer.array();
+	}
+
+	// Reads a list written by encodeNodeList (from just after the id bits), the ids come out sorted
+	private static int[] decodeNodeList(ByteBuffer buffer) {
+		byte encoding = buffer.get();
+		int numNodes = buffer.getInt();
+		int[] nodes = new int[numNodes];
+
+		if (encoding == NODES_BITMAP) {
+			int bitmapBytes = buffer.getInt();
+			int count = 0;
+			for (int i = 0; i < bitmapBytes; i++) {
+				int bits = buffer.get() & 0xFF;
+				while (bits != 0 && count < numNodes) {
+					nodes[count++] = (i << 3) + Integer.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+				}
+			}
+		} else {
+			int previous = 0;
+			for (int i = 0; i < numNodes; i++) {
+				previous += Varint.read(buffer);
+				nodes[i] = previous;
+			}
+		}
+		return nodes;
 	}
-	
+
 	public int getSize() {
 		return size;
 	}
-	
+
 	public ArrayList<Integer> getIDs() {
 		return hopIDs;
 	}
-	
+
 	public ArrayList<byte[]> getIPs() {
 		return hopIPs;
 	}
-	
+
 	public ArrayList<Integer> getPorts() {
 		return hopPorts;
 	}
-	
+
+	/***
+	 * @return the number of bits in a node id, or 0 if the manifest was built from an encoded list
+	 */
+	public int getIDBits() {
+		return idBits;
+	}
+
+	/***
+	 * @return the ids of all the nodes, or null if the manifest was built from an encoded list
+	 */
 	public int[] getNodes() {
 		return allNodes;
 	}
@@ -124,49 +215,35 @@ public class RegistrySendsNodeManifest implements Event {
 
 	@Override
 	public byte[] getBytes() throws IOException {
-		byte[] marshalledBytes = null;
-
-		ByteArrayOutputStream bOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(bOutputStream));
-
-		dout.write(type);
-		dout.write(size);
+		ByteBuffer buffer = ByteBuffer.allocate(getEncodedSize());
+		encode(buffer);
+		return buffer.array();
+	}
 
+	@Override
+	public int getEncodedSize() {
+		int encodedSize = 1 + 2;
 		for (int i = 0; i < size; i++) {
-			dout.writeInt(hopIDs.get(i));
-			int length = hopIPs.get(i).length;
-			dout.write(length);
-			dout.write(hopIPs.get(i));
-			dout.writeInt(hopPorts.get(i));	
+			encodedSize += 4 + 1 + hopIPs.get(i).length + 4;
 		}
+		return encodedSize + encodedNodes.length;
+	}
 
-		// Add number of nodes
-		int numNodes = allNodes.length;
-		dout.write(numNodes);
-
-		// Add int array
-		ByteArrayOutputStream bAOutputStream = new ByteArrayOutputStream();
-		DataOutputStream daout = new DataOutputStream(new BufferedOutputStream(bAOutputStream));
+	@Override
+	public void encode(ByteBuffer buffer) {
+		buffer.put((byte) type);
+		buffer.putShort((short) size);
 
-		for (int i = 0; i < allNodes.length; i++) {
-			daout.writeInt(allNodes[i]);
+		for (int i = 0; i < size; i++) {
+			buffer.putInt(hopIDs.get(i));
+			byte[] ip = hopIPs.get(i);
+			buffer.put((byte) ip.length);
+			buffer.put(ip);
+			buffer.putInt(hopPorts.get(i));
 		}
 
-		daout.flush();
-		byte[] allNodesByte = bAOutputStream.toByteArray();
-
-		dout.write(allNodesByte);
-
-		dout.flush();
-
-		marshalledBytes = bOutputStream.toByteArray();
-
-		bAOutputStream.close();
-		daout.close();
-		bOutputStream.close();
-		dout.close();
-
-		return marshalledBytes;
+		// Add number of nodes then the node ids
+		buffer.put(encodedNodes);
 	}
 
 }
@@ -0,0 +1,45 @@
+package cs455.overlay.wireformats;
+
+import java.nio.ByteBuffer;
+
+/***
+ * Reads and writes varints for the wireformats. A varint holds 7 bits per byte, low bits first,
+ * and the high bit is set on every byte but the last, so small values take a single byte.
+ *
+ * @author acarbona
+ *
+ */
+class Varint {
+
+	private Varint() {
+	}
+
+	static int size(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static void write(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static int read(ByteBuffer buffer) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0 && shift < 35);
+		return value;
+	}
+}
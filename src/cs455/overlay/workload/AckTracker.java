@@ -0,0 +1,107 @@
+package cs455.overlay.workload;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import cs455.overlay.routing.NodeSet;
+
+/***
+ * Counts the messages that reached this node from each source and acks them back in window
+ * workloads. A source is acked once a quarter of its window has arrived, and a timer acks whatever
+ * is left every few milliseconds so the last messages of a window don't wait for more to come.
+ *
+ * Deliveries are counted whether or not acks are being sent. A node can get messages before its
+ * own task initiate message tells it the task is windowed, and those have to be acked too or the
+ * sender would lose that part of its window.
+ *
+ * @author acarbona
+ *
+ */
+public class AckTracker {
+	private static final long FLUSH_INTERVAL_MS = 2;
+
+	private int[] sources;
+	private AtomicIntegerArray pending;
+	private MessageSink sink;
+	private volatile int ackEvery = 0;
+	private Timer flusher;
+
+	/***
+	 * @param nodes all the nodes in the overlay (the possible sources)
+	 * @param sink where the acks are sent
+	 */
+	public AckTracker(NodeSet nodes, MessageSink sink) {
+		sources = nodes.getMembers();
+		pending = new AtomicIntegerArray(sources.length);
+		this.sink = sink;
+	}
+
+	/***
+	 * Counts a message that reached this node, acking the source if enough of its messages have arrived
+	 * @param srcID the id of the node that sent the message
+	 */
+	public void record(int srcID) {
+		int index = Arrays.binarySearch(sources, srcID);
+		if (index < 0) {
+			return;
+		}
+		int count = pending.incrementAndGet(index);
+		int every = ackEvery;
+		if (every != 0 && count >= every) {
+			ack(index);
+		}
+	}
+
+	/***
+	 * Starts sending acks for a window workload
+	 * @param window the number of messages each source can have in flight
+	 */
+	public synchronized void start(int window) {
+		ackEvery = Math.max(1, window / 4);
+		if (flusher == null) {
+			flusher = new Timer("ack-flusher", true);
+			flusher.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					for (int index = 0; index < sources.length; index++) {
+						ack(index);
+					}
+				}
+			}, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS);
+		}
+	}
+
+	/***
+	 * Stops sending acks and forgets the counts (between tasks)
+	 */
+	public synchronized void reset() {
+		ackEvery = 0;
+		if (flusher != null) {
+			flusher.cancel();
+			flusher = null;
+		}
+		for (int index = 0; index < sources.length; index++) {
+			pending.set(index, 0);
+		}
+	}
+
+	private void ack(int index) {
+		int count = pending.getAndSet(index, 0);
+		if (count == 0) {
+			return;
+		}
+		if (ackEvery == 0) {
+			// Stopped in the meantime, keep the count
+			pending.addAndGet(index, count);
+			return;
+		}
+		try {
+			sink.sendAck(sources[index], count);
+		} catch (IOException e) {
+			System.out.println("Error sending ack to " + sources[index] + ": " + e.getMessage());
+		}
+	}
+}
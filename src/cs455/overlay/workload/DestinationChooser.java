@@ -0,0 +1,166 @@
+package cs455.overlay.workload;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import cs455.overlay.routing.NodeSet;
+
+/***
+ * Picks the destination of each message a node sends, following the workload's distribution.
+ *
+ * The zipf and hotspot distributions need the nodes ranked by popularity. The ranking is a shuffle
+ * of the node ids seeded with the workload's seed alone (not the node's), so every node agrees on
+ * which nodes are hot and the hot nodes are spread around the overlay instead of bunched at the
+ * low ids. A node is left out of its own ranking, so it never sends to itself.
+ *
+ * @author acarbona
+ *
+ */
+public abstract class DestinationChooser {
+
+	/***
+	 * @param generator the node's random number generator
+	 * @return the id of the node to send the next message to
+	 */
+	public abstract int next(Random generator);
+
+	/***
+	 * Builds the chooser for a workload
+	 * @param spec the workload
+	 * @param nodes all the nodes in the overlay
+	 * @param myID the id of the node that is sending
+	 * @return the chooser
+	 */
+	public static DestinationChooser create(WorkloadSpec spec, NodeSet nodes, int myID) {
+		switch (spec.getDistribution()) {
+			case WorkloadSpec.ZIPF:
+				return new Zipf(ranking(spec, nodes, myID), spec.getParam1());
+			case WorkloadSpec.HOTSPOT:
+				return new Hotspot(ranking(spec, nodes, myID), spec.getParam1(), spec.getParam2());
+			case WorkloadSpec.NEAREST:
+				return new Nearest(nodes, myID, (int) spec.getParam1());
+			default:
+				return new Uniform(nodes, myID);
+		}
+	}
+
+	/***
+	 * Makes the random number generator for one of a node's senders. With a seed every sender
+	 * gets its own sequence, but the same one on every run.
+	 * @param spec the workload
+	 * @param myID the id of the node that is sending
+	 * @param sender the index of the sender thread
+	 * @return the generator
+	 */
+	public static Random generatorFor(WorkloadSpec spec, int myID, int sender) {
+		if (spec.getSeed() == 0) {
+			return new Random();
+		}
+		return new Random(spec.getSeed() ^ (myID * 0x9E3779B97F4A7C15L) ^ (sender * 0xC2B2AE3D27D4EB4FL));
+	}
+
+	// The nodes other than myID, most popular first
+	private static int[] ranking(WorkloadSpec spec, NodeSet nodes, int myID) {
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for (int id : nodes.getMembers()) {
+			order.add(id);
+		}
+		Collections.shuffle(order, new Random(spec.getSeed()));
+
+		int[] ranked = new int[order.size()];
+		int count = 0;
+		for (int id : order) {
+			if (id != myID) {
+				ranked[count++] = id;
+			}
+		}
+		return Arrays.copyOf(ranked, count);
+	}
+
+	private static class Uniform extends DestinationChooser {
+		private NodeSet nodes;
+		private int myID;
+
+		Uniform(NodeSet nodes, int myID) {
+			this.nodes = nodes;
+			this.myID = myID;
+		}
+
+		@Override
+		public int next(Random generator) {
+			return nodes.randomMember(generator, myID);
+		}
+	}
+
+	// The node of rank r is picked with probability proportional to 1 / r^exponent
+	private static class Zipf extends DestinationChooser {
+		private int[] ranked;
+		private double[] cumulative;
+
+		Zipf(int[] ranked, double exponent) {
+			this.ranked = ranked;
+			cumulative = new double[ranked.length];
+			double total = 0;
+			for (int rank = 0; rank < ranked.length; rank++) {
+				total += 1 / Math.pow(rank + 1, exponent);
+				cumulative[rank] = total;
+			}
+			for (int rank = 0; rank < ranked.length; rank++) {
+				cumulative[rank] /= total;
+			}
+		}
+
+		@Override
+		public int next(Random generator) {
+			int index = Arrays.binarySearch(cumulative, generator.nextDouble());
+			if (index < 0) {
+				index = -index - 1;
+			}
+			return ranked[Math.min(index, ranked.length - 1)];
+		}
+	}
+
+	// A fraction of the messages go to the first few nodes of the ranking, the rest to the others
+	private static class Hotspot extends DestinationChooser {
+		private int[] ranked;
+		private int numHot;
+		private double hotProbability;
+
+		Hotspot(int[] ranked, double hotFraction, double hotProbability) {
+			this.ranked = ranked;
+			numHot = Math.max(1, Math.min(ranked.length, (int) Math.ceil(hotFraction * ranked.length)));
+			this.hotProbability = hotProbability;
+		}
+
+		@Override
+		public int next(Random generator) {
+			if (numHot == ranked.length || generator.nextDouble() < hotProbability) {
+				return ranked[generator.nextInt(numHot)];
+			}
+			return ranked[numHot + generator.nextInt(ranked.length - numHot)];
+		}
+	}
+
+	// One of the next k nodes going clockwise around the overlay
+	private static class Nearest extends DestinationChooser {
+		private int[] successors;
+
+		Nearest(NodeSet nodes, int myID, int k) {
+			int[] members = nodes.getMembers();
+			int start = Arrays.binarySearch(members, myID);
+			start = start < 0 ? -start - 1 : start + 1;
+
+			successors = new int[Math.max(1, Math.min(k, members.length - 1))];
+			for (int i = 0; i < successors.length; i++) {
+				successors[i] = members[(start + i) % members.length];
+			}
+		}
+
+		@Override
+		public int next(Random generator) {
+			return successors[generator.nextInt(successors.length)];
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package cs455.overlay.workload;
+
+import java.io.IOException;
+
+/***
+ * How the workload reaches the node: the generator and the ack tracker only decide what to send,
+ * the node that implements this routes and sends it.
+ *
+ * @author acarbona
+ *
+ */
+public interface MessageSink {
+	/***
+	 * Sends a data message into the overlay
+	 * @param destID the id of the destination node
+	 * @param payload the payload of the message
+	 * @param sequence the number of the message within the task (starting at 0)
+	 * @throws IOException
+	 */
+	public void sendMessage(int destID, int payload, long sequence) throws IOException;
+
+	/***
+	 * Sends any messages the node is holding on to (e.g. in partly filled batches)
+	 * @throws IOException
+	 */
+	public void flush() throws IOException;
+
+	/***
+	 * Called once every message of the task has been sent
+	 * @throws IOException
+	 */
+	public void taskFinished() throws IOException;
+
+	/***
+	 * Tells a source node that more of its messages arrived
+	 * @param destID the id of the node that sent the messages
+	 * @param count the number of messages that arrived since the last ack
+	 * @throws IOException
+	 */
+	public void sendAck(int destID, int count) throws IOException;
+}
@@ -0,0 +1,170 @@
+package cs455.overlay.workload;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import cs455.overlay.routing.NodeSet;
+
+/***
+ * Sends the messages of a task on a pool of sender threads, so the node keeps receiving and
+ * relaying while it sends and can keep all of its outbound connections busy at once. A timed task
+ * sends until its time is up rather than a set number of messages.
+ *
+ * The task is split evenly: each sender sends its share of the messages at its share of the rate,
+ * with its own random number generator. The window is shared, so it still limits the messages
+ * in flight from the whole node. The task is reported finished when the last sender is done.
+ *
+ * In rate mode a sender's message i is due at i / rate seconds after the start. The sender parks
+ * until then, and if it is about to wait more than a millisecond it flushes its messages first so
+ * batched messages aren't held back by the pacing. Being behind never makes it skip messages, it
+ * just sends them straight away until it catches up.
+ *
+ * In window mode every message takes a permit that comes back when the destination acks it.
+ * When there are none left the sender flushes (the acks can't come back for messages that
+ * haven't been sent) before waiting. A message the node sheds gives its permit back at once (see
+ * shed), and a timed task waits for a permit no longer than its time lasts.
+ *
+ * @author acarbona
+ *
+ */
+public class WorkloadGenerator {
+	private static final long FLUSH_BEFORE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private WorkloadSpec spec;
+	private MessageSink sink;
+	private Semaphore inFlight;
+	private Sender[] senders;
+	private AtomicInteger running;
+
+	/***
+	 * @param spec the workload
+	 * @param nodes all the nodes in the overlay
+	 * @param myID the id of the node that is sending
+	 * @param numSenders the number of sender threads
+	 * @param sink where the messages go. Each sender calls it from its own thread
+	 */
+	public WorkloadGenerator(WorkloadSpec spec, NodeSet nodes, int myID, int numSenders, MessageSink sink) {
+		this.spec = spec;
+		this.sink = sink;
+		if (spec.getMode() == WorkloadSpec.WINDOW) {
+			inFlight = new Semaphore(spec.getWindow());
+		}
+
+		// The chooser is only read once it is built, so the senders share it
+		DestinationChooser chooser = DestinationChooser.create(spec, nodes, myID);
+		senders = new Sender[Math.max(1, numSenders)];
+		for (int i = 0; i < senders.length; i++) {
+			int share = spec.getNumMessages() / senders.length + (i < spec.getNumMessages() % senders.length ? 1 : 0);
+			senders[i] = new Sender(i, share, chooser, DestinationChooser.generatorFor(spec, myID, i));
+		}
+		running = new AtomicInteger(senders.length);
+	}
+
+	/***
+	 * Starts the senders
+	 */
+	public void start() {
+		for (Sender sender : senders) {
+			sender.start();
+		}
+	}
+
+	/***
+	 * Called when a destination acks messages from this node
+	 * @param count the number of messages acked
+	 */
+	public void acknowledged(int count) {
+		if (inFlight != null) {
+			inFlight.release(count);
+		}
+	}
+
+	/***
+	 * Called when the node drops messages of the task instead of sending them (overload=shed)
+	 * @param count the number of messages shed
+	 */
+	public void shed(int count) {
+		if (inFlight != null) {
+			inFlight.release(count);
+		}
+	}
+
+	// The last sender to finish reports the task finished
+	private void senderFinished() {
+		if (running.decrementAndGet() != 0) {
+			return;
+		}
+		try {
+			sink.taskFinished();
+		} catch (IOException e) {
+			System.out.println("Error reporting the task finished: " + e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+	private class Sender extends Thread {
+		private int numMessages;
+		private DestinationChooser chooser;
+		private Random generator;
+
+		Sender(int index, int numMessages, DestinationChooser chooser, Random generator) {
+			super("workload-sender-" + index);
+			this.numMessages = numMessages;
+			this.chooser = chooser;
+			this.generator = generator;
+		}
+
+		@Override
+		public void run() {
+			try {
+				long start = System.nanoTime();
+				double nanosPerMessage = spec.getMode() == WorkloadSpec.RATE ? 1e9 * senders.length / spec.getRate() : 0;
+				boolean timed = spec.getSeconds() > 0;
+				long end = start + TimeUnit.SECONDS.toNanos(spec.getSeconds());
+
+				for (long i = 0; timed ? System.nanoTime() - end < 0 : i < numMessages; i++) {
+					if (spec.getMode() == WorkloadSpec.RATE) {
+						long due = start + (long) (i * nanosPerMessage);
+						long wait = due - System.nanoTime();
+						if (wait > FLUSH_BEFORE_WAIT_NANOS) {
+							sink.flush();
+						}
+						while ((wait = due - System.nanoTime()) > 0) {
+							LockSupport.parkNanos(wait);
+						}
+					} else if (inFlight != null && !inFlight.tryAcquire()) {
+						sink.flush();
+						if (!timed) {
+							inFlight.acquireUninterruptibly();
+						} else if (!acquireBefore(end)) {
+							break;
+						}
+					}
+
+					sink.sendMessage(chooser.next(generator), generator.nextInt(), i);
+				}
+
+				sink.flush();
+			} catch (IOException e) {
+				System.out.println("Error generating the workload: " + e.getMessage());
+				e.printStackTrace();
+			} finally {
+				senderFinished();
+			}
+		}
+
+		// Waits for a window permit until the end of a timed task
+		private boolean acquireBefore(long end) {
+			try {
+				return inFlight.tryAcquire(end - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package cs455.overlay.workload;
+
+import java.nio.ByteBuffer;
+
+import cs455.overlay.util.OverlayConfiguration;
+
+/***
+ * Describes the messages a node sends for a task: how many (or for how long), how fast, and where to.
+ * The registry builds it from its startup options and sends it in the task initiate message.
+ *
+ * Modes:
+ * 	- MAX sends as fast as the node can
+ * 	- RATE sends at a fixed rate (messages per second per node) no matter how the overlay keeps up
+ * 	- WINDOW keeps at most window messages in flight, waiting for the destinations' acks
+ *
+ * Distributions (of the destinations):
+ * 	- UNIFORM picks any other node
+ * 	- ZIPF picks nodes by a zipf law with exponent param1, every node ranks the nodes the same way
+ * 	- HOTSPOT sends param2 of the messages to the first param1 of the nodes (in the same ranking)
+ * 	- NEAREST picks one of the next param1 nodes clockwise around the overlay
+ *
+ * A seed of 0 means every run is different, any other seed makes the destinations and payloads
+ * the same every time.
+ *
+ * @author acarbona
+ *
+ */
+public class WorkloadSpec {
+	public static final byte MAX = 0;
+	public static final byte RATE = 1;
+	public static final byte WINDOW = 2;
+
+	public static final byte UNIFORM = 0;
+	public static final byte ZIPF = 1;
+	public static final byte HOTSPOT = 2;
+	public static final byte NEAREST = 3;
+
+	public static final int ENCODED_SIZE = 4 + 4 + 1 + 4 + 4 + 1 + 8 + 8 + 8;
+
+	private int numMessages;
+	private int seconds = 0;
+	private byte mode = MAX;
+	private int rate = 0;
+	private int window = 0;
+	private byte distribution = UNIFORM;
+	private double param1 = 0;
+	private double param2 = 0;
+	private long seed = 0;
+
+	/***
+	 * A workload that sends the messages as fast as possible to uniformly random nodes
+	 * @param numMessages the number of messages each node sends
+	 */
+	public WorkloadSpec(int numMessages) {
+		this.numMessages = numMessages;
+	}
+
+	/***
+	 * The same as fromConfiguration(numMessages), for a task that sends until the time is up
+	 * instead of sending a set number of messages
+	 * @param seconds how long each node sends for
+	 * @return the workload
+	 * @throws IllegalArgumentException if an option can't be understood
+	 */
+	public static WorkloadSpec forDuration(int seconds) {
+		WorkloadSpec spec = fromConfiguration(0);
+		spec.seconds = seconds;
+		return spec;
+	}
+
+	/***
+	 * Builds the workload from the startup options:
+	 * 	workload=max|rate:<messages_per_second>|window:<in_flight>
+	 * 	dist=uniform|zipf:<exponent>|hotspot:<fraction_of_nodes>:<fraction_of_messages>|nearest:<nodes>
+	 * 	seed=<number>
+	 *
+	 * @param numMessages the number of messages each node sends
+	 * @return the workload
+	 * @throws IllegalArgumentException if an option can't be understood
+	 */
+	public static WorkloadSpec fromConfiguration(int numMessages) {
+		OverlayConfiguration config = OverlayConfiguration.getInstance();
+		WorkloadSpec spec = new WorkloadSpec(numMessages);
+
+		String[] workload = config.getString("workload", "max").toLowerCase().split(":");
+		try {
+			if (workload[0].equals("rate")) {
+				spec.mode = RATE;
+				spec.rate = Integer.parseInt(workload[1]);
+			} else if (workload[0].equals("window")) {
+				spec.mode = WINDOW;
+				spec.window = Integer.parseInt(workload[1]);
+			} else if (!workload[0].equals("max")) {
+				throw new IllegalArgumentException("Unknown workload: " + workload[0]);
+			}
+
+			String[] dist = config.getString("dist", "uniform").toLowerCase().split(":");
+			if (dist[0].equals("zipf")) {
+				spec.distribution = ZIPF;
+				spec.param1 = dist.length > 1 ? Double.parseDouble(dist[1]) : 1.0;
+			} else if (dist[0].equals("hotspot")) {
+				spec.distribution = HOTSPOT;
+				spec.param1 = dist.length > 1 ? Double.parseDouble(dist[1]) : 0.1;
+				spec.param2 = dist.length > 2 ? Double.parseDouble(dist[2]) : 0.9;
+			} else if (dist[0].equals("nearest")) {
+				spec.distribution = NEAREST;
+				spec.param1 = dist.length > 1 ? Integer.parseInt(dist[1]) : 1;
+			} else if (!dist[0].equals("uniform")) {
+				throw new IllegalArgumentException("Unknown distribution: " + dist[0]);
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Missing value for the workload");
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number in the workload: " + e.getMessage());
+		}
+
+		if ((spec.mode == RATE && spec.rate <= 0) || (spec.mode == WINDOW && spec.window <= 0)) {
+			throw new IllegalArgumentException("The rate and window must be positive");
+		}
+
+		spec.seed = config.getInt("seed", 0);
+		return spec;
+	}
+
+	/***
+	 * Reads a workload written by encode, starting at the buffer's position
+	 * @param buffer the buffer holding the encoded workload
+	 * @return the workload
+	 */
+	public static WorkloadSpec decode(ByteBuffer buffer) {
+		WorkloadSpec spec = new WorkloadSpec(buffer.getInt());
+		spec.seconds = buffer.getInt();
+		spec.mode = buffer.get();
+		spec.rate = buffer.getInt();
+		spec.window = buffer.getInt();
+		spec.distribution = buffer.get();
+		spec.param1 = buffer.getDouble();
+		spec.param2 = buffer.getDouble();
+		spec.seed = buffer.getLong();
+		return spec;
+	}
+
+	/***
+	 * Writes the workload into the buffer (ENCODED_SIZE bytes)
+	 * @param buffer the buffer to write to
+	 */
+	public void encode(ByteBuffer buffer) {
+		buffer.putInt(numMessages);
+		buffer.putInt(seconds);
+		buffer.put(mode);
+		buffer.putInt(rate);
+		buffer.putInt(window);
+		buffer.put(distribution);
+		buffer.putDouble(param1);
+		buffer.putDouble(param2);
+		buffer.putLong(seed);
+	}
+
+	public int getNumMessages() {
+		return numMessages;
+	}
+
+	/***
+	 * @return how long to send for, or 0 if the task is a number of messages
+	 */
+	public int getSeconds() {
+		return seconds;
+	}
+
+	public byte getMode() {
+		return mode;
+	}
+
+	public int getRate() {
+		return rate;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	public byte getDistribution() {
+		return distribution;
+	}
+
+	public double getParam1() {
+		return param1;
+	}
+
+	public double getParam2() {
+		return param2;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	@Override
+	public String toString() {
+		String[] modes = { "max", "rate:" + rate, "window:" + window };
+		String[] distributions = { "uniform", "zipf:" + param1, "hotspot:" + param1 + ":" + param2, "nearest:" + (int) param1 };
+		String amount = seconds > 0 ? seconds + " seconds" : numMessages + " messages";
+		return amount + ", workload=" + modes[mode] + " dist=" + distributions[distribution] + " seed=" + seed;
+	}
+}